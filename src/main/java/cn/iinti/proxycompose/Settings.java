@@ -108,6 +108,14 @@ public class Settings {
                 "ratio", 1
         );
 
+        /**
+         * 有界负载一致性哈希，单位百分比。每个ip承载的连接数不超过平均值的(1+boundedLoadPercent/100)倍，
+         * 超过之后沿哈希环顺延到下一个ip，小于等于0表示不开启
+         */
+        public final IntegerConfigValue boundedLoadPercent = new IntegerConfigValue(
+                "boundedLoadPercent", 0
+        );
+
     }
 
     public static class Global extends IniConfig {
@@ -143,6 +151,137 @@ public class Settings {
                 "handleSharkConnectionTimeout", 5_000
         );
 
+        /**
+         * 第一次连接尝试超过ip源最近的连接+握手耗时p95仍未完成时，在另一个ip上发起对冲连接，先完成握手的胜出
+         */
+        public BooleanConfigValue hedgeConnect = new BooleanConfigValue(
+                "hedgeConnect", true
+        );
+
+        /**
+         * 在linux下使用epoll native transport替代nio，非linux环境会自动回退到nio
+         */
+        public BooleanConfigValue nativeTransport = new BooleanConfigValue(
+                "nativeTransport", false
+        );
+
+        /**
+         * 纯tcp隧道（https connect、socks5）使用splice零拷贝转发，需要开启nativeTransport和upstreamColocate
+         */
+        public BooleanConfigValue spliceRelay = new BooleanConfigValue(
+                "spliceRelay", false
+        );
+
+        /**
+         * 上游连接注册到用户连接所在的eventLoop上，隧道两端的转发在同一个线程中完成，不再跨线程投递写任务。
+         * 同时也是splice零拷贝转发的前提
+         */
+        public BooleanConfigValue upstreamColocate = new BooleanConfigValue(
+                "upstreamColocate", false
+        );
+
+        /**
+         * 隧道转发写缓冲高水位（字节），对端写缓冲超过此值时暂停读取来源channel
+         */
+        public IntegerConfigValue relayHighWaterMark = new IntegerConfigValue(
+                "relayHighWaterMark", 64 * 1024
+        );
+
+        /**
+         * 隧道转发写缓冲低水位（字节），对端写缓冲回落到此值以下时恢复读取
+         */
+        public IntegerConfigValue relayLowWaterMark = new IntegerConfigValue(
+                "relayLowWaterMark", 32 * 1024
+        );
+
+        /**
+         * http代理在上游连接建立期间缓存的请求body上限（字节），超过后直接拒绝请求并关闭用户连接
+         */
+        public IntegerConfigValue httpPendingMaxBytes = new IntegerConfigValue(
+                "httpPendingMaxBytes", 1024 * 1024
+        );
+
+        /**
+         * 隧道转发合并flush，channelRead中只write，一次读循环结束后（channelReadComplete）统一flush，减少写系统调用
+         */
+        public BooleanConfigValue relayConsolidateFlush = new BooleanConfigValue(
+                "relayConsolidateFlush", true
+        );
+
+        /**
+         * 明文http使用正向代理模式：每个请求单独选择上游，响应结束之后上游连接进入出口ip的keep-alive池复用，
+         * 不再是第一个请求之后整条连接盲转发到同一个上游隧道
+         */
+        public BooleanConfigValue httpForwardMode = new BooleanConfigValue(
+                "httpForwardMode", false
+        );
+
+        /**
+         * 明文http隧道只解析和改写第一个请求的请求行和header（填充上游鉴权），之后卸载两端的http编解码，
+         * body和响应直接以字节转发，不再逐个解码成HttpObject再编码
+         */
+        public BooleanConfigValue httpRawRelay = new BooleanConfigValue(
+                "httpRawRelay", false
+        );
+
+        /**
+         * prometheus指标服务端口，访问路径为/metrics，小于等于0表示不开启
+         */
+        public IntegerConfigValue metricsPort = new IntegerConfigValue(
+                "metricsPort", 0
+        );
+
+        /**
+         * 指标服务监听的ip，默认只监听本机。trace中包含会话的调试信息，暴露到外网时需要自行做好访问控制
+         */
+        public StringConfigValue metricsListenIp = new StringConfigValue(
+                "metricsListenIp", "127.0.0.1"
+        );
+
+        /**
+         * 会话trace使用二进制格式写入内存映射的分段文件，并按sessionId建立索引，开启后不再输出文本trace日志。
+         * 可以通过指标服务的 /trace?sessionId=xxx 接口查询
+         */
+        public BooleanConfigValue traceStore = new BooleanConfigValue(
+                "traceStore", false
+        );
+
+        /**
+         * trace存储单个分段文件大小，单位MB
+         */
+        public IntegerConfigValue traceStoreSegmentMB = new IntegerConfigValue(
+                "traceStoreSegmentMB", 64
+        );
+
+        /**
+         * trace存储总大小上限，单位MB，超过后删除最老的分段
+         */
+        public IntegerConfigValue traceStoreMaxMB = new IntegerConfigValue(
+                "traceStoreMaxMB", 1024
+        );
+
+        /**
+         * 用户会话trace使用尾部采样：会话过程中先缓存，结束时再决定是否落盘，握手失败、failover耗尽、慢握手的会话总是保留。
+         * 开启后每个会话的trace都处于启用状态，事件在转发线程上立即格式化并缓存，有一定的开销，默认关闭
+         */
+        public BooleanConfigValue traceTailSampling = new BooleanConfigValue(
+                "traceTailSampling", false
+        );
+
+        /**
+         * 尾部采样下，正常会话的随机保留比例，单位：百分比
+         */
+        public IntegerConfigValue traceSampleRate = new IntegerConfigValue(
+                "traceSampleRate", 1
+        );
+
+        /**
+         * 从开始连接上游到握手完成超过此时间（毫秒）的会话视为慢握手，trace总是保留
+         */
+        public IntegerConfigValue traceSlowHandshakeMillis = new IntegerConfigValue(
+                "traceSlowHandshakeMillis", 3000
+        );
+
         public final AuthRules authRules = new AuthRules();
 
         public String listenIp = "0.0.0.0";
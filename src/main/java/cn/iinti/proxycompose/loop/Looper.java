@@ -1,20 +1,54 @@
 package cn.iinti.proxycompose.loop;
 
 
+import cn.iinti.proxycompose.metrics.LatencyHistogram;
+import io.netty.util.internal.PlatformDependent;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * 单线程事件循环模型，用来避免一致性问题
+ * 单线程事件循环模型，用来避免一致性问题<br>
+ * 任务队列为无锁的多生产者单消费者队列，looper线程批量消费，空闲时先自旋再让出CPU，最后才park，
+ * 只有looper线程park之后生产者才需要unpark唤醒
  */
 @Slf4j
 public class Looper implements Executor {
+    /**
+     * 每轮最多执行的任务数量，之后推进一次时间轮，避免任务持续涌入时延时任务饿死
+     */
+    private static final int BATCH_SIZE = 256;
+    private static final int SPIN_TRIES = 128;
+    private static final int YIELD_TRIES = 16;
+    /**
+     * 任务排队耗时采样比例，1/N
+     */
+    private static final int LATENCY_SAMPLE = 16;
 
-    private final LinkedBlockingDeque<Runnable> taskQueue = new LinkedBlockingDeque<>();
+    private static final Set<Looper> runningLoopers = ConcurrentHashMap.newKeySet();
+
+    private final Queue<Runnable> taskQueue = PlatformDependent.newMpscQueue();
+    /**
+     * 优先通道，post(runnable, true)的任务放在这里，looper线程总是先消费优先通道
+     */
+    private final Queue<Runnable> priorityQueue = PlatformDependent.newMpscQueue();
 
     private final LoopThread loopThread;
+    private volatile boolean parked = false;
+
+    /**
+     * 任务从投递到开始执行的排队耗时，采样统计
+     */
+    @Getter
+    private final LatencyHistogram taskLatency = new LatencyHistogram();
+    private volatile long executedTasks = 0;
     private final long createTimestamp = System.currentTimeMillis();
 
     private static Looper lowPriorityLooper;
@@ -36,9 +70,9 @@ public class Looper implements Executor {
     }
 
     /**
-     * 让looper拥有延时任务的能力
+     * 让looper拥有延时任务的能力，时间轮由looper线程自己驱动
      */
-    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final TimingWheel timingWheel = new TimingWheel(this);
 
     public Looper(String looperName) {
         loopThread = new LoopThread(looperName);
@@ -48,15 +82,38 @@ public class Looper implements Executor {
 
     public Looper startLoop() {
         loopThread.start();
+        runningLoopers.add(this);
         return this;
     }
 
+    /**
+     * 当前运行中的looper，用于指标输出
+     */
+    public static Collection<Looper> runningLoopers() {
+        return Collections.unmodifiableSet(runningLoopers);
+    }
+
+    public String getName() {
+        return loopThread.getName();
+    }
+
+    /**
+     * 队列中等待执行的任务数量，并发情况下是一个近似值
+     */
+    public int queueDepth() {
+        return taskQueue.size() + priorityQueue.size();
+    }
+
+    public long getExecutedTasks() {
+        return executedTasks;
+    }
+
     public void post(Runnable runnable) {
         post(runnable, false);
     }
 
     public void offerLast(Runnable runnable) {
-        taskQueue.addLast(runnable);
+        enqueue(taskQueue, runnable);
     }
 
     public void post(Runnable runnable, boolean first) {
@@ -71,17 +128,43 @@ public class Looper implements Executor {
             runnable.run();
             return;
         }
-        if (first) {
-            taskQueue.offerFirst(runnable);
-        } else {
-            taskQueue.add(runnable);
+        enqueue(first ? priorityQueue : taskQueue, runnable);
+    }
+
+    private void enqueue(Queue<Runnable> queue, Runnable runnable) {
+        if (ThreadLocalRandom.current().nextInt(LATENCY_SAMPLE) == 0) {
+            runnable = new TimedTask(runnable);
+        }
+        queue.offer(runnable);
+        if (parked) {
+            LockSupport.unpark(loopThread);
+        }
+    }
+
+    private class TimedTask implements Runnable {
+        private final Runnable runnable;
+        private final long enqueueNanos = System.nanoTime();
+
+        TimedTask(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            taskLatency.recordNanos(System.nanoTime() - enqueueNanos);
+            runnable.run();
         }
     }
 
-    public void postDelay(Runnable runnable, long delay) {
+    /**
+     * 延时任务
+     *
+     * @return 任务句柄，可以用于取消任务。任务被取消后不再持有runnable的引用
+     */
+    public TimingWheel.Timeout postDelay(Runnable runnable, long delay) {
         if (delay <= 0) {
             post(runnable);
-            return;
+            return TimingWheel.Timeout.DONE;
         }
         if (!loopThread.isAlive()) {
             //todo 这是应该是有bug，先加上这一行日志
@@ -89,7 +172,9 @@ public class Looper implements Executor {
                 log.warn("post task before looper startup,do you call :startLoop??", new Throwable());
             }
         }
-        scheduler.schedule(() -> post(runnable), delay, TimeUnit.MILLISECONDS);
+        TimingWheel.Timeout timeout = timingWheel.newTimeout(runnable, delay);
+        execute(() -> timingWheel.schedule(timeout));
+        return timeout;
     }
 
     public Looper fluentScheduleWithRate(Runnable runnable, long rate) {
@@ -109,7 +194,7 @@ public class Looper implements Executor {
 //        if (rate.longValue() > 0) {
 //            post(runnable);
 //        }
-        postDelay(fixRateScheduleHandle, rate.longValue());
+        fixRateScheduleHandle.timeout = postDelay(fixRateScheduleHandle, rate.longValue());
         return fixRateScheduleHandle;
     }
 
@@ -126,7 +211,8 @@ public class Looper implements Executor {
     public class FixRateScheduleHandle implements Runnable {
         private final Runnable runnable;
         private final Number rate;
-        private boolean running;
+        private volatile boolean running;
+        private volatile TimingWheel.Timeout timeout;
 
 
         FixRateScheduleHandle(Runnable runnable, Number rate) {
@@ -137,12 +223,16 @@ public class Looper implements Executor {
 
         public void cancel() {
             this.running = false;
+            TimingWheel.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
         }
 
         @Override
         public void run() {
             if (running && rate.longValue() > 0) {
-                postDelay(this, rate.longValue());
+                timeout = postDelay(this, rate.longValue());
             }
             runnable.run();
         }
@@ -165,24 +255,70 @@ public class Looper implements Executor {
             super(name);
         }
 
-        private boolean run = true;
+        private volatile boolean run = true;
 
         @Override
         public void run() {
+            int idle = 0;
             while (run) {
+                int executed = runTasks();
+                timingWheel.advance();
+                if (executed > 0) {
+                    idle = 0;
+                    continue;
+                }
+                if (idle < SPIN_TRIES) {
+                    idle++;
+                } else if (idle < SPIN_TRIES + YIELD_TRIES) {
+                    idle++;
+                    Thread.yield();
+                } else {
+                    park();
+                }
+            }
+        }
+
+        private int runTasks() {
+            int executed = 0;
+            while (executed < BATCH_SIZE) {
+                Runnable task = priorityQueue.poll();
+                if (task == null) {
+                    task = taskQueue.poll();
+                    if (task == null) {
+                        break;
+                    }
+                }
+                executed++;
                 try {
-                    taskQueue.take().run();
-                } catch (InterruptedException interruptedException) {
-                    return;
+                    task.run();
                 } catch (Throwable throwable) {
                     log.error("group event loop error", throwable);
                 }
             }
+            if (executed > 0) {
+                executedTasks += executed;
+            }
+            return executed;
+        }
+
+        private void park() {
+            parked = true;
+            // 设置park标记之后需要再检查一次，否则可能错过生产者的唤醒
+            if (taskQueue.isEmpty() && priorityQueue.isEmpty() && run) {
+                long waitMillis = timingWheel.millisToNextTick();
+                if (waitMillis < 0) {
+                    LockSupport.park(this);
+                } else if (waitMillis > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMillis));
+                }
+            }
+            parked = false;
         }
     }
 
     public void close() {
+        runningLoopers.remove(this);
         loopThread.run = false;
-        loopThread.interrupt();
+        LockSupport.unpark(loopThread);
     }
 }
@@ -0,0 +1,216 @@
+package cn.iinti.proxycompose.loop;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 哈希时间轮，Looper的延时任务容器，由Looper线程自己驱动，不再经过全局的ScheduledExecutorService。<br>
+ * 插入和取消都是O(1)：每个槽位是一个双向链表，超过一圈的任务通过remainingRounds计数。
+ * 这里是单层的时间轮而不是分层时间轮，延时任务最长也就分钟级别，多层结构没有收益。<br>
+ * 时间基于{@link System#nanoTime()}，系统时钟被调整时不会导致任务集中触发或者停止触发。<br>
+ * 除了{@link Timeout#cancel()}，所有方法都只能在Looper线程上调用
+ */
+@Slf4j
+public class TimingWheel {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final Looper looper;
+    private final Timeout[] heads = new Timeout[WHEEL_SIZE];
+    private final Timeout[] tails = new Timeout[WHEEL_SIZE];
+    private final long startTime = System.nanoTime();
+    /**
+     * 下一个需要处理的tick
+     */
+    private long currentTick = 0;
+    private int size = 0;
+
+    TimingWheel(Looper looper) {
+        this.looper = looper;
+    }
+
+    /**
+     * 创建一个任务句柄，此时还没有加入时间轮，需要在Looper线程上调用{@link #schedule(Timeout)}
+     */
+    Timeout newTimeout(Runnable task, long delayMillis) {
+        return new Timeout(this, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    void schedule(Timeout timeout) {
+        if (timeout.state != Timeout.ST_INIT) {
+            // 加入时间轮之前已经被取消
+            return;
+        }
+        if (size == 0) {
+            // looper空闲时阻塞在任务队列上，tick没有推进，需要先对齐，否则轮数计算会偏大
+            alignTick();
+        }
+        long targetTick = (timeout.deadline - startTime + TICK_NANOS - 1) / TICK_NANOS;
+        targetTick = Math.max(targetTick, currentTick);
+        timeout.remainingRounds = (targetTick - currentTick) / WHEEL_SIZE;
+        link((int) (targetTick & MASK), timeout);
+    }
+
+    private void link(int index, Timeout timeout) {
+        timeout.bucket = index;
+        timeout.prev = tails[index];
+        timeout.next = null;
+        if (tails[index] == null) {
+            heads[index] = timeout;
+        } else {
+            tails[index].next = timeout;
+        }
+        tails[index] = timeout;
+        size++;
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return;
+        }
+        int index = timeout.bucket;
+        if (timeout.prev == null) {
+            heads[index] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next == null) {
+            tails[index] = timeout.prev;
+        } else {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * @return 距离下一个tick的等待时间，时间轮为空时返回-1，代表可以无限等待
+     */
+    long millisToNextTick() {
+        if (size == 0) {
+            return -1;
+        }
+        long waitNanos = startTime + currentTick * TICK_NANOS - System.nanoTime();
+        if (waitNanos <= 0) {
+            return 0;
+        }
+        // 向上取整，否则最后不足1ms的时候会反复以0等待空转
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    /**
+     * 推进时间轮，执行所有到期的任务
+     */
+    void advance() {
+        if (size == 0) {
+            // 空转时不需要逐个tick推进，直接对齐到当前时间
+            alignTick();
+            return;
+        }
+        long elapsed = System.nanoTime() - startTime;
+        while (size > 0 && currentTick * TICK_NANOS <= elapsed) {
+            expireBucket((int) (currentTick & MASK));
+            currentTick++;
+        }
+    }
+
+    private void alignTick() {
+        currentTick = Math.max(currentTick, (System.nanoTime() - startTime) / TICK_NANOS);
+    }
+
+    private void expireBucket(int index) {
+        // 先把整个槽位摘下来，到期任务执行时可能会取消或者新增同一个槽位的任务
+        Timeout timeout = heads[index];
+        heads[index] = null;
+        tails[index] = null;
+        for (Timeout it = timeout; it != null; it = it.next) {
+            it.bucket = -1;
+            size--;
+        }
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            if (timeout.remainingRounds > 0) {
+                if (timeout.state == Timeout.ST_INIT) {
+                    timeout.remainingRounds--;
+                    link(index, timeout);
+                }
+            } else {
+                timeout.expire();
+            }
+            timeout = next;
+        }
+    }
+
+    public static class Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        /**
+         * 已经完成的句柄，用于不需要延时的任务
+         */
+        public static final Timeout DONE = new Timeout(null, null, 0);
+
+        static {
+            DONE.state = ST_EXPIRED;
+        }
+
+        private final TimingWheel wheel;
+        /**
+         * {@link System#nanoTime()}时间
+         */
+        private final long deadline;
+        private volatile Runnable task;
+        private volatile int state = ST_INIT;
+
+        // 以下字段只在Looper线程上访问
+        private long remainingRounds;
+        private int bucket = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消任务，可以在任意线程调用。取消后立即释放任务对象的引用，不需要等到时间到期
+         */
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            task = null;
+            wheel.looper.execute(() -> wheel.remove(this));
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        private void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            Runnable runnable = task;
+            task = null;
+            try {
+                runnable.run();
+            } catch (Throwable throwable) {
+                log.error("timer task execute error", throwable);
+            }
+        }
+    }
+}
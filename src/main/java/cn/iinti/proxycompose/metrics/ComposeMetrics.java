@@ -0,0 +1,46 @@
+package cn.iinti.proxycompose.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 全局的连接调度指标
+ */
+@Getter
+public class ComposeMetrics {
+    /**
+     * 发起的上游连接任务数，每个用户请求一次
+     */
+    private final LongAdder connectTasks = new LongAdder();
+
+    /**
+     * failover重试次数，不包括第一次尝试
+     */
+    private final LongAdder failoverRetries = new LongAdder();
+
+    /**
+     * 重试次数用尽之后最终失败的连接任务数
+     */
+    private final LongAdder connectFailed = new LongAdder();
+
+    /**
+     * 第一次尝试超过p95仍未握手完成，额外发起的对冲连接数
+     */
+    private final LongAdder hedgedConnects = new LongAdder();
+
+    /**
+     * 对冲连接先于第一次尝试握手完成的次数
+     */
+    private final LongAdder hedgeWins = new LongAdder();
+
+    /**
+     * 对冲中落败、但是已经开始握手的尝试，握手之后的连接绑定了目标，只能关闭，属于浪费的上游连接
+     */
+    private final LongAdder hedgeWasted = new LongAdder();
+
+    /**
+     * 还没有分配ip源的阶段（协议识别、鉴权）的耗时
+     */
+    private final StageLatencies stageLatencies = new StageLatencies();
+}
@@ -0,0 +1,35 @@
+package cn.iinti.proxycompose.metrics;
+
+/**
+ * 一个代理请求从接入到开始转发数据经过的各个阶段
+ */
+public enum ConnectStage {
+    /**
+     * 收到用户第一个数据包到识别出代理协议
+     */
+    PROTOCOL_DETECT("protocol_detect"),
+    AUTH("auth"),
+    /**
+     * 选择ip源，包括在compose线程上的排队时间
+     */
+    IP_SOURCE_ALLOCATE("ip_source_allocate"),
+    /**
+     * 在ip池中分配出口ip，包括在ip源线程上的排队时间
+     */
+    IP_ALLOCATE("ip_allocate"),
+    /**
+     * 和上游代理服务器建立tcp连接，命中连接池缓存时不存在这个阶段
+     */
+    TCP_CONNECT("tcp_connect"),
+    HANDSHAKE("handshake"),
+    /**
+     * 隧道建立到收到上游第一个字节
+     */
+    FIRST_BYTE("first_byte");
+
+    public final String name;
+
+    ConnectStage(String name) {
+        this.name = name;
+    }
+}
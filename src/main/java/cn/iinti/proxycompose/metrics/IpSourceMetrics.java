@@ -0,0 +1,38 @@
+package cn.iinti.proxycompose.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ip源维度的运行指标，由转发过程中的各个线程并发写入
+ */
+@Getter
+public class IpSourceMetrics {
+    /**
+     * 分配到本ip源之后各阶段的耗时，只统计成功的阶段
+     */
+    private final StageLatencies stageLatencies = new StageLatencies();
+
+    private final LongAdder handShakeFailed = new LongAdder();
+
+    /**
+     * 一次连接尝试从开始到和上游握手完成的耗时，包括ip分配、tcp连接（命中缓存时没有）和握手
+     */
+    private final LatencyHistogram connectHandshakeLatency = new LatencyHistogram();
+
+    /**
+     * 最近的连接+握手耗时p95，作为对冲连接的触发时间
+     */
+    private final PercentileWindow connectHandshakeP95 = new PercentileWindow(connectHandshakeLatency, 0.95);
+
+    /**
+     * 借用连接时命中连接池缓存的次数
+     */
+    private final LongAdder connCacheHit = new LongAdder();
+
+    /**
+     * 借用连接时没有可用缓存，需要立即创建连接的次数
+     */
+    private final LongAdder connCacheMiss = new LongAdder();
+}
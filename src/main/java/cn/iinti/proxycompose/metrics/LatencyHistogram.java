@@ -0,0 +1,117 @@
+package cn.iinti.proxycompose.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延时直方图，参考HdrHistogram的对数-线性分桶：每个2的幂区间再线性切分为32个子桶，相对误差约3%<br>
+ * 内部单位为微秒，最大记录约19小时，超出的值记录在最后一个桶中。
+ * 记录过程只有几次原子自增，不加锁，可以在eventLoop中直接调用
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_VALUE = (1L << 36) - 1;
+    private static final int BUCKET_LENGTH = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_LENGTH);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public void recordNanos(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 0) {
+            micros = 0;
+        } else if (micros > MAX_VALUE) {
+            micros = MAX_VALUE;
+        }
+        counts.incrementAndGet(bucketIndex(micros));
+        totalCount.increment();
+        sumMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    /**
+     * 小于64的值一一对应，之后每个2的幂区间对应32个桶
+     */
+    private static int bucketIndex(long micros) {
+        if (micros < 2 * SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (micros >>> shift);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * 快照过程不阻塞记录，所以快照中各字段之间可能存在微小的不一致
+     */
+    public Snapshot snapshot() {
+        long[] bucketCounts = new long[BUCKET_LENGTH];
+        long total = 0;
+        for (int i = 0; i < BUCKET_LENGTH; i++) {
+            bucketCounts[i] = counts.get(i);
+            total += bucketCounts[i];
+        }
+        return new Snapshot(bucketCounts, total, sumMicros.sum(), maxMicros.get());
+    }
+
+    public static class Snapshot {
+        private final long[] bucketCounts;
+        @Getter
+        private final long count;
+        @Getter
+        private final long sumMicros;
+        @Getter
+        private final long maxMicros;
+
+        private Snapshot(long[] bucketCounts, long count, long sumMicros, long maxMicros) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * @param percentile 0-1之间，如0.99代表p99
+         * @return 对应分位的延时（微秒），取所在桶的上界
+         */
+        public long percentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(percentile * count));
+            long cumulative = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                cumulative += bucketCounts[i];
+                if (cumulative >= target) {
+                    return Math.min(bucketUpperBound(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        /**
+         * @return 两次快照之间新增的记录，最大值无法做差，沿用当前快照的最大值
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[bucketCounts.length];
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] = bucketCounts[i] - earlier.bucketCounts[i];
+            }
+            return new Snapshot(delta, count - earlier.count, sumMicros - earlier.sumMicros, maxMicros);
+        }
+    }
+}
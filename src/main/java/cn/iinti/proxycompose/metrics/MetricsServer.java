@@ -0,0 +1,138 @@
+package cn.iinti.proxycompose.metrics;
+
+import cn.iinti.proxycompose.Settings;
+import cn.iinti.proxycompose.proxy.ProxyCompose;
+import cn.iinti.proxycompose.trace.impl.SubscribeRecorders;
+import cn.iinti.proxycompose.trace.store.TraceRecord;
+import cn.iinti.proxycompose.trace.store.TraceStore;
+import cn.iinti.proxycompose.utils.NettyThreadPools;
+import cn.iinti.proxycompose.utils.NettyUtil;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 内嵌的指标服务器，提供prometheus抓取接口：GET /metrics，以及trace查询接口：GET /trace?sessionId=xxx<br>
+ * 接口没有鉴权，默认只监听本机，见{@link Settings.Global#metricsListenIp}
+ */
+@Slf4j
+public class MetricsServer {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final int port;
+    private final ProxyCompose proxyCompose;
+    private Channel serverChannel;
+
+    public MetricsServer(int port, ProxyCompose proxyCompose) {
+        this.port = port;
+        this.proxyCompose = proxyCompose;
+        start();
+    }
+
+    private void start() {
+        new ServerBootstrap()
+                .group(NettyThreadPools.proxyServerBossGroup, NettyThreadPools.proxyServerWorkerGroup)
+                .channel(NettyThreadPools.serverChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(
+                                new HttpServerCodec(),
+                                new HttpObjectAggregator(64 * 1024),
+                                new MetricsHandler()
+                        );
+                    }
+                })
+                .bind(Settings.global.metricsListenIp.value, port)
+                .addListener((ChannelFutureListener) future -> {
+                    if (future.isSuccess()) {
+                        log.info("metrics server start success: {}:{}", Settings.global.metricsListenIp.value, port);
+                        serverChannel = future.channel();
+                        return;
+                    }
+                    log.error("metrics server start failed: {}", port, future.cause());
+                });
+    }
+
+    public void destroy() {
+        NettyUtil.closeIfActive(serverChannel);
+    }
+
+    private class MetricsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+            String path = decoder.path();
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            if (request.method() != HttpMethod.GET) {
+                writeResponse(ctx, keepAlive, HttpResponseStatus.NOT_FOUND, null);
+                return;
+            }
+            switch (path) {
+                case "/metrics":
+                    writeResponse(ctx, keepAlive, HttpResponseStatus.OK, PrometheusExporter.render(proxyCompose));
+                    return;
+                case "/trace":
+                    queryTrace(ctx, keepAlive, decoder);
+                    return;
+                default:
+                    writeResponse(ctx, keepAlive, HttpResponseStatus.NOT_FOUND, null);
+            }
+        }
+
+        private void queryTrace(ChannelHandlerContext ctx, boolean keepAlive, QueryStringDecoder decoder) {
+            TraceStore traceStore = TraceStore.get();
+            if (traceStore == null) {
+                writeResponse(ctx, keepAlive, HttpResponseStatus.NOT_FOUND, "trace store not enabled\n");
+                return;
+            }
+            List<String> sessionIds = decoder.parameters().get("sessionId");
+            if (sessionIds == null || sessionIds.isEmpty()) {
+                writeResponse(ctx, keepAlive, HttpResponseStatus.BAD_REQUEST, "need param: sessionId\n");
+                return;
+            }
+            traceStore.query(sessionIds.get(0), value -> {
+                StringBuilder sb = new StringBuilder();
+                for (TraceRecord traceRecord : value.v) {
+                    // 打码的消息包含上游鉴权等敏感信息，不对外输出
+                    if (SubscribeRecorders.isMosaicMsg(traceRecord.getMessage())) {
+                        continue;
+                    }
+                    sb.append(traceRecord).append('\n');
+                }
+                writeResponse(ctx, keepAlive, HttpResponseStatus.OK, sb.toString());
+            });
+        }
+
+        private void writeResponse(ChannelHandlerContext ctx, boolean keepAlive, HttpResponseStatus status, String body) {
+            FullHttpResponse response;
+            if (body == null) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+            } else {
+                ByteBuf content = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+            }
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            HttpUtil.setKeepAlive(response, keepAlive);
+            ChannelFuture channelFuture = ctx.writeAndFlush(response);
+            if (!keepAlive) {
+                channelFuture.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn("metrics request failed", cause);
+            ctx.close();
+        }
+    }
+}
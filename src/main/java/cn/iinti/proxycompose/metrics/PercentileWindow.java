@@ -0,0 +1,46 @@
+package cn.iinti.proxycompose.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于直方图快照做差的近期分位数，直方图本身是累计的，这里只计算上一次结算之后新增的记录。<br>
+ * 每隔一段时间由读取方顺带结算一次，样本不足时不结算，窗口继续累积，期间沿用上一次的结果
+ */
+public class PercentileWindow {
+    private static final long REFRESH_INTERVAL_MILLIS = 10_000;
+    private static final long MIN_SAMPLES = 20;
+
+    private final LatencyHistogram histogram;
+    private final double percentile;
+
+    private final AtomicLong nextRefreshTime = new AtomicLong(0);
+    private volatile LatencyHistogram.Snapshot settled;
+    private volatile long valueMicros = 0;
+
+    public PercentileWindow(LatencyHistogram histogram, double percentile) {
+        this.histogram = histogram;
+        this.percentile = percentile;
+    }
+
+    /**
+     * @return 近期分位数（微秒），还没有足够的样本时返回0
+     */
+    public long getMicros() {
+        long now = System.currentTimeMillis();
+        long refreshTime = nextRefreshTime.get();
+        if (now >= refreshTime && nextRefreshTime.compareAndSet(refreshTime, now + REFRESH_INTERVAL_MILLIS)) {
+            refresh();
+        }
+        return valueMicros;
+    }
+
+    private void refresh() {
+        LatencyHistogram.Snapshot current = histogram.snapshot();
+        LatencyHistogram.Snapshot window = settled == null ? current : current.since(settled);
+        if (window.getCount() < MIN_SAMPLES) {
+            return;
+        }
+        valueMicros = window.percentileMicros(percentile);
+        settled = current;
+    }
+}
@@ -0,0 +1,186 @@
+package cn.iinti.proxycompose.metrics;
+
+import cn.iinti.proxycompose.loop.Looper;
+import cn.iinti.proxycompose.proxy.ProxyCompose;
+import cn.iinti.proxycompose.proxy.ProxyServer;
+import cn.iinti.proxycompose.proxy.RuntimeIpSource;
+import cn.iinti.proxycompose.trace.impl.TraceRingBuffer;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 将系统指标输出为prometheus文本格式（text/plain; version=0.0.4）
+ */
+public class PrometheusExporter {
+    private static final String PREFIX = "proxy_compose_";
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * 分配ip源之前的阶段，只有全局统计
+     */
+    private static final ConnectStage[] GLOBAL_STAGES = {ConnectStage.PROTOCOL_DETECT, ConnectStage.AUTH};
+
+    private static final ConnectStage[] SOURCE_STAGES = {
+            ConnectStage.IP_SOURCE_ALLOCATE, ConnectStage.IP_ALLOCATE, ConnectStage.TCP_CONNECT,
+            ConnectStage.HANDSHAKE, ConnectStage.FIRST_BYTE
+    };
+
+    private final StringBuilder sb = new StringBuilder();
+
+    public static String render(ProxyCompose proxyCompose) {
+        return new PrometheusExporter().doRender(proxyCompose);
+    }
+
+    private String doRender(ProxyCompose proxyCompose) {
+        Collection<RuntimeIpSource> ipSources = proxyCompose.getIpSources();
+
+        sourceFamily("ip_pool_size", "gauge", "online ip count in pool", ipSources,
+                runtimeIpSource -> runtimeIpSource.getIpPool().poolSize());
+        sourceFamily("ip_pool_cached_size", "gauge", "standby ip count waiting to be online", ipSources,
+                runtimeIpSource -> runtimeIpSource.getIpPool().cachedSize());
+        sourceFamily("ip_pool_config_size", "gauge", "configured pool size", ipSources,
+                runtimeIpSource -> runtimeIpSource.getPoolSize().value);
+        sourceFamily("ip_source_health_score", "gauge", "ip source health score, 100 means healthy", ipSources,
+                RuntimeIpSource::healthScore);
+
+        Map<String, Integer> ratio = proxyCompose.getCurrentRatio();
+        sourceFamily("ip_source_ratio", "gauge", "current traffic ratio between ip sources", ipSources,
+                runtimeIpSource -> ratio.getOrDefault(runtimeIpSource.getName(), 0));
+
+        sourceFamily("conn_cache_hit_total", "counter", "upstream connection borrowed from cache", ipSources,
+                runtimeIpSource -> runtimeIpSource.getMetrics().getConnCacheHit().sum());
+        sourceFamily("conn_cache_miss_total", "counter", "upstream connection created immediately", ipSources,
+                runtimeIpSource -> runtimeIpSource.getMetrics().getConnCacheMiss().sum());
+        sourceFamily("conn_cache_hit_ratio", "gauge", "hit ratio of upstream connection cache", ipSources,
+                runtimeIpSource -> hitRatio(runtimeIpSource.getMetrics()));
+        sourceFamily("handshake_failed_total", "counter", "failed upstream handshake", ipSources,
+                runtimeIpSource -> runtimeIpSource.getMetrics().getHandShakeFailed().sum());
+        sourceFamily("hedge_delay_milliseconds", "gauge", "recent p95 of connect plus handshake, used as hedge delay", ipSources,
+                runtimeIpSource -> runtimeIpSource.getMetrics().getConnectHandshakeP95().getMicros() / 1000.0);
+
+        sourceFamily("bytes_up_total", "counter", "bytes relayed from user to upstream", ipSources,
+                runtimeIpSource -> runtimeIpSource.getTrafficStat().snapshot().getBytesUp());
+        sourceFamily("bytes_down_total", "counter", "bytes relayed from upstream to user", ipSources,
+                runtimeIpSource -> runtimeIpSource.getTrafficStat().snapshot().getBytesDown());
+        sourceFamily("spliced_bytes_total", "counter",
+                "approximate bytes relayed by splice, included in bytes_up and bytes_down, counted per chunk", ipSources,
+                runtimeIpSource -> runtimeIpSource.getTrafficStat().snapshot().getSplicedBytes());
+        sourceFamily("active_tunnels", "gauge", "tunnels currently relaying", ipSources,
+                runtimeIpSource -> runtimeIpSource.getTrafficStat().snapshot().getActiveTunnels());
+
+        stageSummary(proxyCompose.getMetrics().getStageLatencies(), ipSources);
+
+        ComposeMetrics composeMetrics = proxyCompose.getMetrics();
+        single("connect_total", "counter", "upstream connect tasks",
+                composeMetrics.getConnectTasks().sum());
+        single("failover_total", "counter", "failover retries of upstream connect tasks",
+                composeMetrics.getFailoverRetries().sum());
+        single("connect_failed_total", "counter", "upstream connect tasks failed after all failover",
+                composeMetrics.getConnectFailed().sum());
+        single("hedged_connect_total", "counter", "hedged connects started when the first attempt exceeds p95",
+                composeMetrics.getHedgedConnects().sum());
+        single("hedge_win_total", "counter", "hedged connects finished handshake before the first attempt",
+                composeMetrics.getHedgeWins().sum());
+        single("hedge_wasted_connection_total", "counter", "losing attempts closed after their handshake had started",
+                composeMetrics.getHedgeWasted().sum());
+
+        single("trace_dropped_total", "counter", "trace events dropped because trace ring buffer is full",
+                TraceRingBuffer.INSTANCE.dropped());
+
+        String name = PREFIX + "http_pending_request_bytes";
+        header(name, "gauge", "request body bytes buffered while waiting for upstream");
+        for (ProxyServer proxyServer : proxyCompose.getProxyServers()) {
+            sb.append(name).append("{port=\"").append(proxyServer.getPort()).append("\"} ")
+                    .append(proxyServer.getPendingRequestBytes().sum()).append('\n');
+        }
+
+        looperMetrics(Looper.runningLoopers());
+        return sb.toString();
+    }
+
+    private void header(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void single(String name, String type, String help, Number value) {
+        name = PREFIX + name;
+        header(name, type, help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void sourceFamily(String name, String type, String help,
+                              Collection<RuntimeIpSource> ipSources,
+                              Function<RuntimeIpSource, Number> valueGetter) {
+        name = PREFIX + name;
+        header(name, type, help);
+        for (RuntimeIpSource runtimeIpSource : ipSources) {
+            sb.append(name).append("{source=\"").append(escape(runtimeIpSource.getName())).append("\"} ")
+                    .append(valueGetter.apply(runtimeIpSource)).append('\n');
+        }
+    }
+
+    private void stageSummary(StageLatencies globalLatencies, Collection<RuntimeIpSource> ipSources) {
+        String name = PREFIX + "stage_latency_milliseconds";
+        header(name, "summary", "latency of each stage in connect pipeline");
+        for (ConnectStage stage : GLOBAL_STAGES) {
+            summary(name, "stage=\"" + stage.name + "\"", globalLatencies.get(stage).snapshot());
+        }
+        for (RuntimeIpSource runtimeIpSource : ipSources) {
+            StageLatencies stageLatencies = runtimeIpSource.getMetrics().getStageLatencies();
+            String source = escape(runtimeIpSource.getName());
+            for (ConnectStage stage : SOURCE_STAGES) {
+                summary(name, "stage=\"" + stage.name + "\",source=\"" + source + "\"",
+                        stageLatencies.get(stage).snapshot());
+            }
+        }
+    }
+
+    private void looperMetrics(Collection<Looper> loopers) {
+        String name = PREFIX + "looper_queue_depth";
+        header(name, "gauge", "tasks waiting in looper queue");
+        for (Looper looper : loopers) {
+            sb.append(name).append("{looper=\"").append(escape(looper.getName())).append("\"} ")
+                    .append(looper.queueDepth()).append('\n');
+        }
+        name = PREFIX + "looper_tasks_total";
+        header(name, "counter", "tasks executed by looper");
+        for (Looper looper : loopers) {
+            sb.append(name).append("{looper=\"").append(escape(looper.getName())).append("\"} ")
+                    .append(looper.getExecutedTasks()).append('\n');
+        }
+        name = PREFIX + "looper_task_latency_milliseconds";
+        header(name, "summary", "sampled time from task posted to task started");
+        for (Looper looper : loopers) {
+            summary(name, "looper=\"" + escape(looper.getName()) + "\"", looper.getTaskLatency().snapshot());
+        }
+    }
+
+    private void summary(String name, String labels, LatencyHistogram.Snapshot snapshot) {
+        for (double quantile : QUANTILES) {
+            sb.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(toMillis(snapshot.percentileMicros(quantile))).append('\n');
+        }
+        sb.append(name).append("_sum{").append(labels).append("} ").append(toMillis(snapshot.getSumMicros())).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(snapshot.getCount()).append('\n');
+    }
+
+    private static double hitRatio(IpSourceMetrics metrics) {
+        long hit = metrics.getConnCacheHit().sum();
+        long total = hit + metrics.getConnCacheMiss().sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+}
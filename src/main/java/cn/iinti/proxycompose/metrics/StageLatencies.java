@@ -0,0 +1,26 @@
+package cn.iinti.proxycompose.metrics;
+
+/**
+ * 按连接阶段划分的延时直方图
+ */
+public class StageLatencies {
+    private final LatencyHistogram[] histograms = new LatencyHistogram[ConnectStage.values().length];
+
+    public StageLatencies() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public void record(ConnectStage stage, long nanos) {
+        histograms[stage.ordinal()].recordNanos(nanos);
+    }
+
+    public void recordSince(ConnectStage stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram get(ConnectStage stage) {
+        return histograms[stage.ordinal()];
+    }
+}
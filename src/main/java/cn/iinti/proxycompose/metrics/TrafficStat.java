@@ -0,0 +1,121 @@
+package cn.iinti.proxycompose.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 流量统计，隧道两端的转发线程会同时写入，所以全部使用LongAdder，不加锁。<br>
+ * 统计分为三个层级：session -> ActiveProxyIp -> RuntimeIpSource，下级的数据会同时累加到上级
+ */
+public class TrafficStat {
+    private final TrafficStat parent;
+
+    /**
+     * 用户 -> 上游
+     */
+    private final LongAdder bytesUp = new LongAdder();
+    /**
+     * 上游 -> 用户
+     */
+    private final LongAdder bytesDown = new LongAdder();
+    /**
+     * 通过splice转发的字节数（两个方向合计），已经包含在bytesUp和bytesDown中。<br>
+     * splice的数据不经过用户态，只能按块统计，每个方向最后不满一块的部分不会被统计，所以这是一个偏小的近似值
+     */
+    private final LongAdder splicedBytes = new LongAdder();
+
+    private final LongAdder activeTunnels = new LongAdder();
+    private final LongAdder closedTunnels = new LongAdder();
+    private final LongAdder tunnelDurationMillis = new LongAdder();
+
+    private final LongAdder firstByteCount = new LongAdder();
+    private final LongAdder firstByteMillis = new LongAdder();
+
+    public TrafficStat(TrafficStat parent) {
+        this.parent = parent;
+    }
+
+    public void addUpload(long bytes) {
+        bytesUp.add(bytes);
+        if (parent != null) {
+            parent.addUpload(bytes);
+        }
+    }
+
+    public void addDownload(long bytes) {
+        bytesDown.add(bytes);
+        if (parent != null) {
+            parent.addDownload(bytes);
+        }
+    }
+
+    public void addSpliced(long bytes) {
+        splicedBytes.add(bytes);
+        if (parent != null) {
+            parent.addSpliced(bytes);
+        }
+    }
+
+    public void onTunnelOpen() {
+        activeTunnels.increment();
+        if (parent != null) {
+            parent.onTunnelOpen();
+        }
+    }
+
+    public void onTunnelClose(long durationMillis) {
+        activeTunnels.decrement();
+        closedTunnels.increment();
+        tunnelDurationMillis.add(durationMillis);
+        if (parent != null) {
+            parent.onTunnelClose(durationMillis);
+        }
+    }
+
+    /**
+     * @param latencyMillis 从隧道建立到收到上游第一个字节的耗时
+     */
+    public void onFirstByte(long latencyMillis) {
+        firstByteCount.increment();
+        firstByteMillis.add(latencyMillis);
+        if (parent != null) {
+            parent.onFirstByte(latencyMillis);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Getter
+    public static class Snapshot {
+        private final long bytesUp;
+        private final long bytesDown;
+        private final long splicedBytes;
+        private final long activeTunnels;
+        private final long closedTunnels;
+        /**
+         * 已关闭隧道的平均持续时间
+         */
+        private final long avgTunnelDurationMillis;
+        private final long avgFirstByteMillis;
+        /**
+         * 已关闭隧道的平均吞吐，单位：字节/秒。统计窗口为隧道持续时间，活跃中的隧道不参与计算
+         */
+        private final long avgThroughput;
+
+        private Snapshot(TrafficStat stat) {
+            this.bytesUp = stat.bytesUp.sum();
+            this.bytesDown = stat.bytesDown.sum();
+            this.splicedBytes = stat.splicedBytes.sum();
+            this.activeTunnels = stat.activeTunnels.sum();
+            this.closedTunnels = stat.closedTunnels.sum();
+            long duration = stat.tunnelDurationMillis.sum();
+            this.avgTunnelDurationMillis = closedTunnels == 0 ? 0 : duration / closedTunnels;
+            long firstByteCount = stat.firstByteCount.sum();
+            this.avgFirstByteMillis = firstByteCount == 0 ? 0 : stat.firstByteMillis.sum() / firstByteCount;
+            this.avgThroughput = duration == 0 ? 0 : (bytesUp + bytesDown) * 1000 / duration;
+        }
+    }
+}
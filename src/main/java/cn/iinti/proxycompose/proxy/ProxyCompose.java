@@ -1,8 +1,12 @@
 package cn.iinti.proxycompose.proxy;
 
 import cn.iinti.proxycompose.Settings;
+import cn.iinti.proxycompose.metrics.ComposeMetrics;
+import cn.iinti.proxycompose.metrics.ConnectStage;
+import cn.iinti.proxycompose.metrics.MetricsServer;
+import cn.iinti.proxycompose.metrics.TrafficStat;
 import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
-import cn.iinti.proxycompose.utils.ConsistentHashUtil;
+import cn.iinti.proxycompose.utils.ConsistentHashRing;
 import cn.iinti.proxycompose.loop.Looper;
 import cn.iinti.proxycompose.loop.ValueCallback;
 import cn.iinti.proxycompose.trace.Recorder;
@@ -33,12 +37,26 @@ public class ProxyCompose {
      */
     private final TreeMap<Integer, ProxyServer> proxyServerTreeMap = Maps.newTreeMap();
 
-    private TreeMap<Long, String> ipSourceKeyMap = new TreeMap<>();
-    private List<String> ipSourceKeyList = Lists.newArrayList();
+    /**
+     * 池间路由表，只在compose线程上重建，通过volatile整体发布，路由查询可以在任意线程直接读取
+     */
+    private volatile IpSourceRoute ipSourceRoute = new IpSourceRoute(ConsistentHashRing.empty(), Collections.emptyList());
+
+    /**
+     * 当前生效的池间流量比例（经过健康度浮动之后）
+     */
+    @Getter
+    private volatile Map<String, Integer> currentRatio = Collections.emptyMap();
+
+    @Getter
+    private final ComposeMetrics metrics = new ComposeMetrics();
+
+    private MetricsServer metricsServer;
     /**
      * 路由缓存，当一个隧道访问过程使用过某个ip资源，那么系统优先尝试使用曾今的隧道，如此尽可能保证ip出口不变<br>
      * ps：需要做这个缓存更重要的原因是，malenia在运作过程会有failover，failover过程会有不可预期的隧道映射关系重置
-     * 此时无法根据固定的规则进行mapping计算
+     * 此时无法根据固定的规则进行mapping计算<br>
+     * guava cache本身是线程安全的，所以读写都直接在调用线程上完成
      */
     private final Cache<Long, ActiveProxyIp> routeCache = CacheBuilder.newBuilder()
             .removalListener((RemovalListener<Long, ActiveProxyIp>) notification -> {
@@ -73,6 +91,19 @@ public class ProxyCompose {
         Map<String, Integer> ratioConfig = Collections.unmodifiableMap(ipSourceWithRatio);
         reloadIpSourceRatio(ratioConfig);
         composeWorkThead.scheduleWithRate(() -> reloadIpSourceRatio(ratioConfig), 300_000);
+
+        Integer metricsPort = Settings.global.metricsPort.value;
+        if (metricsPort != null && metricsPort > 0) {
+            metricsServer = new MetricsServer(metricsPort, ProxyCompose.this);
+        }
+    }
+
+    public Collection<RuntimeIpSource> getIpSources() {
+        return Collections.unmodifiableCollection(ipSources.values());
+    }
+
+    public Collection<ProxyServer> getProxyServers() {
+        return Collections.unmodifiableCollection(proxyServerTreeMap.values());
     }
 
 
@@ -111,28 +142,35 @@ public class ProxyCompose {
             Map<String, Integer> configRule = Settings.global.enableFloatIpSourceRatio.value ?
                     floatRatio(ratio) : ratio;
 
-            TreeMap<Long, String> newIpSources = new TreeMap<>();
+            ConsistentHashRing.Builder<String> newIpSources = ConsistentHashRing.builder();
             List<String> newIpSourceLists = Lists.newArrayList(new TreeSet<>(configRule.keySet()));
 
             for (String ipSourceKey : configRule.keySet()) {
-                int ratio1 = configRule.get(ipSourceKey);
-                if (ratio1 == 0) {
-                    continue;
-                }
-                for (int i = 1; i <= ratio1; i++) {
-                    long murHash = ConsistentHashUtil.murHash(ipSourceKey + "_##_" + i);
-                    newIpSources.put(murHash, ipSourceKey);
-                }
+                // 流量比例即为ip源在哈希环上的虚拟节点数
+                newIpSources.add(ipSourceKey, ipSourceKey, configRule.get(ipSourceKey));
             }
-            ipSourceKeyMap = newIpSources;
-            ipSourceKeyList = newIpSourceLists;
+            ipSourceRoute = new IpSourceRoute(newIpSources.build(), Collections.unmodifiableList(newIpSourceLists));
+            currentRatio = Collections.unmodifiableMap(configRule);
         });
     }
 
 
+    /**
+     * 各ip源的流量快照，key为ip源名称
+     */
+    public Map<String, TrafficStat.Snapshot> ipSourceTrafficSnapshot() {
+        Map<String, TrafficStat.Snapshot> ret = Maps.newHashMap();
+        ipSources.forEach((sourceKey, runtimeIpSource) ->
+                ret.put(sourceKey, runtimeIpSource.getTrafficStat().snapshot()));
+        return ret;
+    }
+
     public void destroy() {
         composeWorkThead.post(() -> {
             proxyServerTreeMap.values().forEach(ProxyServer::destroy);
+            if (metricsServer != null) {
+                metricsServer.destroy();
+            }
             composeWorkThead.close();
         });
     }
@@ -143,6 +181,7 @@ public class ProxyCompose {
             ValueCallback<Channel> callback) {
         SubscribeRecorders.SubscribeRecorder recorder = session.getRecorder();
 
+        long allocateStart = System.nanoTime();
         allocateIpSource(sessionHash, tag, session, ipSourceValue -> {
             if (!ipSourceValue.isSuccess()) {
                 recorder.recordEvent(() -> tag + "allocate IpSource failed", ipSourceValue.e);
@@ -151,6 +190,7 @@ public class ProxyCompose {
             }
 
             RuntimeIpSource ipSource = ipSourceValue.v;
+            ipSource.getMetrics().getStageLatencies().recordSince(ConnectStage.IP_SOURCE_ALLOCATE, allocateStart);
             // 拿到IP源，此时ip源是根据分流比例控制的
             recorder.recordMosaicMsg(() -> tag + "allocate IpSource success: " + ipSource.getName());
             // 在ip源上分配代理
@@ -166,23 +206,25 @@ public class ProxyCompose {
                         JSONObject.toJSONString(activeProxyIp.getDownloadProxyIp())
                         + " begin to borrow connection"
                 );
-                activeProxyIp.borrowConnect(recorder, tag, observer, callback);
+                activeProxyIp.borrowConnect(recorder, tag, session.upstreamEventLoop(), observer, callback);
             });
         });
     }
 
+    /**
+     * 路由表是不可变快照，这里直接在调用线程（一般是netty的eventLoop）上完成计算，不再切换到compose线程
+     */
     public void allocateIpSource(long sessionHash, String tag, Session session, ValueCallback<RuntimeIpSource> valueCallback) {
-        composeWorkThead.post(() -> {
-            // 如果用户有指定了代理ip源，那么使用特定的代理ip
-            String ipSourceKey = ConsistentHashUtil.fetchConsistentRing(ipSourceKeyMap, sessionHash);
-            if (ipSourceKey == null) {
-                // not happen
-                valueCallback.onReceiveValue(ValueCallback.Value.failed("no ipSources mapping for "));
-                return;
-            }
-            session.getRecorder().recordMosaicMsg(() -> tag + "map route to ipSource: " + ipSourceKey);
-            allocateIpSource0(session.getRecorder(), tag, ipSourceKey, ipSourceKeyList, valueCallback);
-        });
+        IpSourceRoute route = ipSourceRoute;
+        // 如果用户有指定了代理ip源，那么使用特定的代理ip
+        String ipSourceKey = route.keyRing.fetch(sessionHash);
+        if (ipSourceKey == null) {
+            // not happen
+            valueCallback.onReceiveValue(ValueCallback.Value.failed("no ipSources mapping for "));
+            return;
+        }
+        session.getRecorder().recordMosaicMsg(() -> tag + "map route to ipSource: " + ipSourceKey);
+        allocateIpSource0(session.getRecorder(), tag, ipSourceKey, route.keyList, valueCallback);
     }
 
     private void allocateIpSource0(Recorder recorder, String tag, String prefer, List<String> candidate,
@@ -222,21 +264,18 @@ public class ProxyCompose {
     }
 
     public void fetchCachedSession(Session session, ValueCallback<ActiveProxyIp> callback) {
-        composeWorkThead.post(() -> {
-            ActiveProxyIp sessionIp = routeCache.getIfPresent(session.getSessionHash());
-            if (sessionIp == null) {
-                ValueCallback.failed(callback, "not exist");
-                return;
-            }
-
-            if (sessionIp.getActiveStatus() != ActiveProxyIp.ActiveStatus.DESTROY) {
-                ValueCallback.success(callback, sessionIp);
-                return;
-            }
-            routeCache.invalidate(session.getSessionHash());
+        ActiveProxyIp sessionIp = routeCache.getIfPresent(session.getSessionHash());
+        if (sessionIp == null) {
             ValueCallback.failed(callback, "not exist");
-        });
+            return;
+        }
 
+        if (sessionIp.getActiveStatus() != ActiveProxyIp.ActiveStatus.DESTROY) {
+            ValueCallback.success(callback, sessionIp);
+            return;
+        }
+        routeCache.invalidate(session.getSessionHash());
+        ValueCallback.failed(callback, "not exist");
     }
 
     public void markSessionUse(Session session, ActiveProxyIp activeProxyIp) {
@@ -245,6 +284,19 @@ public class ProxyCompose {
         }
         session.getRecorder().recordEvent(() -> "add sessionId route mapping ");
         activeProxyIp.refreshRefSessionHash(session.getSessionHash(), true);
-        composeWorkThead.post(() -> routeCache.put(session.getSessionHash(), activeProxyIp));
+        routeCache.put(session.getSessionHash(), activeProxyIp);
+    }
+
+    private static class IpSourceRoute {
+        /**
+         * 按照流量比例展开的一致性哈希环
+         */
+        private final ConsistentHashRing<String> keyRing;
+        private final List<String> keyList;
+
+        private IpSourceRoute(ConsistentHashRing<String> keyRing, List<String> keyList) {
+            this.keyRing = keyRing;
+            this.keyList = keyList;
+        }
     }
 }
\ No newline at end of file
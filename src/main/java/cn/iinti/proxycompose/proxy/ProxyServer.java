@@ -1,5 +1,6 @@
 package cn.iinti.proxycompose.proxy;
 
+import cn.iinti.proxycompose.Settings;
 import cn.iinti.proxycompose.proxy.inbound.detector.HttpProxyMatcher;
 import cn.iinti.proxycompose.proxy.inbound.detector.HttpsProxyMatcher;
 import cn.iinti.proxycompose.proxy.inbound.detector.ProtocolDetector;
@@ -12,13 +13,15 @@ import cn.iinti.proxycompose.trace.Recorder;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.lang.ref.WeakReference;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 
 
@@ -38,9 +41,22 @@ public class ProxyServer {
     @Getter
     private final ProxyCompose proxyCompose;
 
+    /**
+     * 隧道转发的写缓冲水位，同时作用于用户连接和上游连接，超过高水位后暂停读取对端，避免慢客户端导致内存无限堆积
+     */
+    @Getter
+    private final WriteBufferWaterMark writeBufferWaterMark;
+
+    /**
+     * 本代理服务器上所有http连接在等待上游期间缓存的请求body字节数
+     */
+    @Getter
+    private final LongAdder pendingRequestBytes = new LongAdder();
+
     public ProxyServer(int port, ProxyCompose proxyCompose) {
         this.port = port;
         this.proxyCompose = proxyCompose;
+        this.writeBufferWaterMark = buildWriteBufferWaterMark();
         startProxy(buildProxyServerConfig(), 20);
     }
 
@@ -62,15 +78,33 @@ public class ProxyServer {
         });
     }
 
+    private static WriteBufferWaterMark buildWriteBufferWaterMark() {
+        int high = Settings.global.relayHighWaterMark.value;
+        int low = Settings.global.relayLowWaterMark.value;
+        if (high <= 0) {
+            return WriteBufferWaterMark.DEFAULT;
+        }
+        if (low <= 0 || low > high) {
+            low = high / 2;
+        }
+        return new WriteBufferWaterMark(low, high);
+    }
+
     public boolean enable() {
         return serverChannel != null && serverChannel.isActive();
     }
 
 
     private ServerBootstrap buildProxyServerConfig() {
-        return new ServerBootstrap()
+        ServerBootstrap serverBootstrap = new ServerBootstrap()
                 .group(NettyThreadPools.proxyServerBossGroup, NettyThreadPools.proxyServerWorkerGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(NettyThreadPools.serverChannelClass())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        if (NettyThreadPools.useSplice) {
+            // splice只支持LT模式，并且必须在channel注册之前设置
+            serverBootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+        return serverBootstrap
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) {
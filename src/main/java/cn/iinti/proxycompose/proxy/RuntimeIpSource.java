@@ -1,6 +1,8 @@
 package cn.iinti.proxycompose.proxy;
 
 import cn.iinti.proxycompose.Settings;
+import cn.iinti.proxycompose.metrics.IpSourceMetrics;
+import cn.iinti.proxycompose.metrics.TrafficStat;
 import cn.iinti.proxycompose.resource.IpResourceParser;
 import cn.iinti.proxycompose.loop.Looper;
 import cn.iinti.proxycompose.proxy.outbound.IpPool;
@@ -46,6 +48,18 @@ public class RuntimeIpSource {
     @Getter
     private final IpResourceParser resourceParser;
 
+    /**
+     * 本ip源的流量统计，由池中所有出口ip汇总而来
+     */
+    @Getter
+    private final TrafficStat trafficStat = new TrafficStat(null);
+
+    /**
+     * 本ip源的连接、握手等运行指标
+     */
+    @Getter
+    private final IpSourceMetrics metrics = new IpSourceMetrics();
+
     public RuntimeIpSource(Settings.IpSource ipSource) {
         this.ipSource = ipSource;
         this.supportProtocolList = Collections.unmodifiableList(parseSupportProtocol(ipSource.supportProtocol.value));
@@ -67,6 +81,8 @@ public class RuntimeIpSource {
         looper.scheduleWithRate(RuntimeIpSource.this::scheduleMakeConnCache,
                 ipSource.makeConnInterval.value * 1000);
 
+        looper.scheduleWithRate(ipPool::refreshQualityWeights, 10_000);
+
         looper.postDelay(RuntimeIpSource.this::scheduleIpDownload, 500);
     }
 
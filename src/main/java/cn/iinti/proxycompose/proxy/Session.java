@@ -1,12 +1,17 @@
 package cn.iinti.proxycompose.proxy;
 
 import cn.iinti.proxycompose.Settings;
+import cn.iinti.proxycompose.metrics.ConnectStage;
 import cn.iinti.proxycompose.proxy.inbound.handlers.RelayHandler;
+import cn.iinti.proxycompose.proxy.inbound.handlers.SpliceRelayHandler;
+import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
 import cn.iinti.proxycompose.proxy.outbound.handshark.Protocol;
 import cn.iinti.proxycompose.resource.IpAndPort;
 import cn.iinti.proxycompose.utils.ConsistentHashUtil;
 import cn.iinti.proxycompose.trace.impl.SubscribeRecorders;
+import cn.iinti.proxycompose.utils.NettyThreadPools;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
 import io.netty.util.AttributeKey;
 import lombok.Getter;
 import lombok.Setter;
@@ -32,6 +37,13 @@ public class Session {
     @Setter
     private boolean authed = false;
 
+    /**
+     * socks5 udp associate会话，上游只能使用socks5协议
+     */
+    @Getter
+    @Setter
+    private boolean udpAssociate = false;
+
 
     public static Session touch(Channel inboundChannel, ProxyServer proxyServer) {
         return new Session(inboundChannel, proxyServer);
@@ -43,7 +55,10 @@ public class Session {
 
         recorder.recordEvent("new request from: " + inboundChannel);
         attach(inboundChannel);
-        inboundChannel.closeFuture().addListener(future -> recorder.recordEvent("user connection closed"));
+        inboundChannel.closeFuture().addListener(future -> {
+            recorder.recordEvent("user connection closed");
+            recorder.finishTrace();
+        });
     }
 
     private static final AttributeKey<Session> SESSION_ATTRIBUTE_KEY = AttributeKey.newInstance("SESSION_ATTRIBUTE_KEY");
@@ -57,12 +72,88 @@ public class Session {
     }
 
 
+    /**
+     * 上游连接需要注册的eventLoop，开启upstreamColocate时和用户连接相同，否则为null（使用公共的outbound线程池）
+     */
+    public EventLoop upstreamEventLoop() {
+        return NettyThreadPools.colocateUpstream ? inboundChannel.eventLoop() : null;
+    }
+
+    /**
+     * 记录还没有分配ip源的阶段耗时（协议识别、鉴权）
+     */
+    public void recordStageSince(ConnectStage stage, long startNanos) {
+        proxyServer.getProxyCompose().getMetrics().getStageLatencies().recordSince(stage, startNanos);
+    }
+
     public void replay(Channel upstreamChannel) {
+        replay(upstreamChannel, false);
+    }
+
+    /**
+     * @param rawTunnel 是否为纯tcp隧道（https connect、socks5），纯tcp隧道在epoll下可以使用splice零拷贝转发
+     */
+    public void replay(Channel upstreamChannel, boolean rawTunnel) {
+        // 上游连接是无session创建的（可能来自连接池），这里统一设置转发水位
+        upstreamChannel.config().setWriteBufferWaterMark(proxyServer.getWriteBufferWaterMark());
+        setupTrafficStat(upstreamChannel);
+
+        if (rawTunnel && SpliceRelayHandler.canSplice(inboundChannel, upstreamChannel)) {
+            recorder.recordEvent("use splice relay");
+            SpliceRelayHandler.setup(upstreamChannel, inboundChannel, "replay-outbound:", recorder,
+                    this::onDownload, this::onSpliced);
+            SpliceRelayHandler.setup(inboundChannel, upstreamChannel, "replay-inbound:", recorder,
+                    this::onUpload, this::onSpliced);
+            return;
+        }
         upstreamChannel.pipeline()
-                .addLast(new RelayHandler(inboundChannel, "replay-outbound:", recorder));
+                .addLast(new RelayHandler(inboundChannel, "replay-outbound:", recorder, this::onDownload));
 
         inboundChannel.pipeline()
-                .addLast(new RelayHandler(upstreamChannel, "replay-inbound:", recorder));
+                .addLast(new RelayHandler(upstreamChannel, "replay-inbound:", recorder, this::onUpload));
+    }
+
+    /**
+     * 不建立tcp隧道的转发，只设置转发水位，流量统计在第一次转发时建立。
+     * 目前只有socks5 udp转发使用，整个会话只有一个上游控制连接
+     */
+    public void onForwardUpstream(Channel upstreamChannel) {
+        upstreamChannel.config().setWriteBufferWaterMark(proxyServer.getWriteBufferWaterMark());
+        if (tunnelTraffic == null) {
+            setupTrafficStat(upstreamChannel);
+        }
+    }
+
+    /**
+     * http正向代理模式下每个请求都可能使用不同的上游连接，流量和首字节耗时按请求统计到本次使用的出口ip上，
+     * 返回的统计需要在请求结束或者用户连接关闭时调用{@link TunnelTraffic#close()}
+     */
+    public TunnelTraffic openExchange(Channel upstreamChannel) {
+        upstreamChannel.config().setWriteBufferWaterMark(proxyServer.getWriteBufferWaterMark());
+        return new TunnelTraffic(upstreamChannel);
+    }
+
+    /**
+     * 隧道流量统计，隧道建立之后才存在
+     */
+    private TunnelTraffic tunnelTraffic;
+
+    private void setupTrafficStat(Channel upstreamChannel) {
+        TunnelTraffic traffic = new TunnelTraffic(upstreamChannel);
+        tunnelTraffic = traffic;
+        inboundChannel.closeFuture().addListener(future -> traffic.close());
+    }
+
+    public void onUpload(long bytes) {
+        tunnelTraffic.onUpload(bytes);
+    }
+
+    public void onSpliced(long bytes) {
+        tunnelTraffic.onSpliced(bytes);
+    }
+
+    public void onDownload(long bytes) {
+        tunnelTraffic.onDownload(bytes);
     }
 
 
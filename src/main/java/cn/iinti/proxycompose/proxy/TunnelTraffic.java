@@ -0,0 +1,69 @@
+package cn.iinti.proxycompose.proxy;
+
+import cn.iinti.proxycompose.metrics.ConnectStage;
+import cn.iinti.proxycompose.metrics.StageLatencies;
+import cn.iinti.proxycompose.metrics.TrafficStat;
+import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
+import io.netty.channel.Channel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一条隧道的流量和首字节耗时统计，绑定到隧道实际使用的出口ip，数据会同时汇总到出口ip和ip源上。<br>
+ * http正向代理模式下每个请求都可能使用不同的上游连接，此时每个请求单独一个实例
+ */
+public class TunnelTraffic {
+    private final TrafficStat trafficStat;
+
+    /**
+     * 出口ip所在ip源的阶段耗时统计，出口ip未知时（理论上不会发生）为null
+     */
+    private final StageLatencies sourceStageLatencies;
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * 只会在上游channel的eventLoop中访问
+     */
+    private boolean firstByteReceived = false;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    TunnelTraffic(Channel upstreamChannel) {
+        ActiveProxyIp activeProxyIp = ActiveProxyIp.getBinding(upstreamChannel);
+        this.trafficStat = new TrafficStat(activeProxyIp == null ? null : activeProxyIp.getTrafficStat());
+        this.sourceStageLatencies = activeProxyIp == null ? null :
+                activeProxyIp.getIpPool().getRuntimeIpSource().getMetrics().getStageLatencies();
+        trafficStat.onTunnelOpen();
+    }
+
+    public void onUpload(long bytes) {
+        trafficStat.addUpload(bytes);
+    }
+
+    public void onSpliced(long bytes) {
+        trafficStat.addSpliced(bytes);
+    }
+
+    public void onDownload(long bytes) {
+        if (!firstByteReceived && bytes > 0) {
+            firstByteReceived = true;
+            long latency = System.nanoTime() - startNanos;
+            trafficStat.onFirstByte(TimeUnit.NANOSECONDS.toMillis(latency));
+            if (sourceStageLatencies != null) {
+                sourceStageLatencies.record(ConnectStage.FIRST_BYTE, latency);
+            }
+        }
+        trafficStat.addDownload(bytes);
+    }
+
+    /**
+     * 隧道结束，可以重复调用
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            trafficStat.onTunnelClose(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package cn.iinti.proxycompose.proxy.inbound.detector;
 
 
+import cn.iinti.proxycompose.metrics.ConnectStage;
+import cn.iinti.proxycompose.proxy.Session;
 import cn.iinti.proxycompose.utils.NettyUtil;
 import cn.iinti.proxycompose.trace.Recorder;
 import io.netty.buffer.ByteBuf;
@@ -29,6 +31,7 @@ public class ProtocolDetector extends ChannelInboundHandlerAdapter {
 
     private final Recorder recorder;
     private boolean hasData = false;
+    private long firstDataNanos;
 
 
     public ProtocolDetector( Recorder recorder, MatchMissHandler missHandler, ProtocolMatcher... matchers) {
@@ -48,6 +51,9 @@ public class ProtocolDetector extends ChannelInboundHandlerAdapter {
             NettyUtil.closeOnFlush(ctx.channel());
             return;
         }
+        if (!hasData) {
+            firstDataNanos = System.nanoTime();
+        }
         hasData = true;
 
         ByteBuf in = (ByteBuf) msg;
@@ -64,6 +70,10 @@ public class ProtocolDetector extends ChannelInboundHandlerAdapter {
             int match = matcher.match(buf.duplicate());
             if (match == ProtocolMatcher.MATCH) {
                 recorder.recordEvent("matched by " + matcher.getClass().getName());
+                Session session = Session.get(ctx.channel());
+                if (session != null) {
+                    session.recordStageSince(ConnectStage.PROTOCOL_DETECT, firstDataNanos);
+                }
                 matcher.handleMatched(  recorder, ctx);
                 ctx.pipeline().remove(this);
                 ctx.fireChannelRead(buf);
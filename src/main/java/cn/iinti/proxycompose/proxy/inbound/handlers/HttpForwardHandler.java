@@ -0,0 +1,452 @@
+package cn.iinti.proxycompose.proxy.inbound.handlers;
+
+import cn.iinti.proxycompose.proxy.ProxyCompose;
+import cn.iinti.proxycompose.proxy.Session;
+import cn.iinti.proxycompose.proxy.TunnelTraffic;
+import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
+import cn.iinti.proxycompose.proxy.outbound.handshark.Protocol;
+import cn.iinti.proxycompose.proxy.outbound.handshark.ProtocolManager;
+import cn.iinti.proxycompose.proxy.switcher.OutboundConnectTask;
+import cn.iinti.proxycompose.proxy.switcher.UpstreamHandSharkCallback;
+import cn.iinti.proxycompose.resource.IpAndPort;
+import cn.iinti.proxycompose.trace.Recorder;
+import cn.iinti.proxycompose.utils.NettyUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+
+import javax.annotation.Nullable;
+
+/**
+ * http正向代理模式，鉴权通过之后替换{@link ProxyHttpHandler}，处理明文http连接上的全部请求：<br>
+ * 每个请求单独解析目标并选择上游，响应结束之后上游连接归还到出口ip的keep-alive池，
+ * 后续请求（无论是否来自同一个用户连接）直接复用，省去和代理服务器的tcp握手。<br>
+ * 同一个用户连接上同时只处理一个请求，提前到达的pipeline请求在上一个响应结束之后再处理。
+ * 本handler的状态只在用户连接的eventLoop中访问
+ */
+public class HttpForwardHandler extends ChannelInboundHandlerAdapter implements UpstreamHandSharkCallback {
+    private static final String UPSTREAM_CODEC = "forward-codec";
+
+    private final Session session;
+    private final Recorder recorder;
+
+    /**
+     * 还没有发送到上游的请求数据，包括连接上游期间到达的body，以及提前到达的下一个请求
+     */
+    private PendingHttpObjects pending;
+
+    private ChannelHandlerContext ctx;
+    private State state = State.IDLE;
+
+    // 以下为当前正在处理的请求
+    private HttpRequest request;
+    private IpAndPort target;
+    private boolean clientKeepAlive;
+    private boolean requestFinished;
+    private Channel upstreamChannel;
+    private String keepAliveKey;
+    private ResponseRelay relay;
+    /**
+     * 本次请求的流量统计，绑定到本次使用的上游连接
+     */
+    private TunnelTraffic traffic;
+
+    public HttpForwardHandler(Session session) {
+        this.session = session;
+        this.recorder = session.getRecorder();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        this.pending = new PendingHttpObjects(session.getProxyServer().getPendingRequestBytes());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof HttpObject)) {
+            recorder.recordEvent(() -> "not handle http message:" + msg);
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+            return;
+        }
+        if (!pending.add((HttpObject) msg)) {
+            recorder.recordEvent(() -> "pending request body exceed limit, state: " + state);
+            if (state == State.EXCHANGING) {
+                // 上游的响应可能已经写了一部分，不能再插入413，直接断开
+                ctx.close();
+            } else {
+                NettyUtil.httpResponseText(ctx.channel(), HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, null);
+            }
+            return;
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            if (state == State.CONNECTING) {
+                return;
+            }
+            if (state == State.IDLE) {
+                HttpObject head = pending.poll();
+                if (head == null) {
+                    return;
+                }
+                if (!(head instanceof HttpRequest)) {
+                    // 上一个请求剩余的body（响应提前结束的场景），直接丢弃
+                    ReferenceCountUtil.release(head);
+                    continue;
+                }
+                startExchange((HttpRequest) head);
+                continue;
+            }
+            // EXCHANGING
+            if (requestFinished) {
+                // 请求已经发送完成，等待响应结束
+                return;
+            }
+            HttpObject httpObject = pending.poll();
+            if (httpObject == null) {
+                upstreamChannel.flush();
+                resumeReadIfWritable();
+                return;
+            }
+            if (httpObject instanceof HttpContent) {
+                traffic.onUpload(((HttpContent) httpObject).content().readableBytes());
+            }
+            upstreamChannel.write(httpObject);
+            if (httpObject instanceof LastHttpContent) {
+                requestFinished = true;
+                upstreamChannel.flush();
+                // 请求结束之后停止读取，下一个请求在响应结束之后再处理
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+    }
+
+    private void resumeReadIfWritable() {
+        Channel channel = ctx.channel();
+        if (upstreamChannel.isWritable()) {
+            channel.config().setAutoRead(true);
+            return;
+        }
+        channel.config().setAutoRead(false);
+        // 设置autoRead之前上游可能已经恢复可写，此时上游的writabilityChanged已经错过了，需要再检查一次
+        if (upstreamChannel.isWritable()) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    private void startExchange(HttpRequest httpRequest) {
+        state = State.CONNECTING;
+        ctx.channel().config().setAutoRead(false);
+
+        // 用户连接的keep-alive需要在删除逐跳头部之前确定
+        clientKeepAlive = HttpUtil.isKeepAlive(httpRequest);
+        // 逐跳头部只对用户连接有效，其中包括已经完成鉴权的用户鉴权信息，不能透传到上游
+        NettyUtil.removeHopByHopHeaders(httpRequest);
+        // 上游连接始终要求keep-alive，响应结束之后归还到连接池复用
+        HttpUtil.setKeepAlive(httpRequest, true);
+        IpAndPort proxyTarget = NettyUtil.parseProxyTarget(httpRequest, false);
+        if (proxyTarget == null) {
+            recorder.recordEvent(() -> "can not parse proxy target");
+            NettyUtil.httpResponseText(ctx.channel(), HttpResponseStatus.BAD_REQUEST, "can not parse proxy target");
+            return;
+        }
+        request = httpRequest;
+        target = proxyTarget;
+        requestFinished = false;
+        session.onProxyTargetResolved(proxyTarget, Protocol.HTTP);
+
+        ProxyCompose proxyCompose = session.getProxyServer().getProxyCompose();
+        proxyCompose.fetchCachedSession(session, value -> {
+            if (value.isSuccess() && reuseKeepAlive(value.v)) {
+                return;
+            }
+            recorder.recordEvent(() -> "no keep-alive connection, connect to outbound");
+            OutboundConnectTask.startConnectOutbound(session, this);
+        });
+    }
+
+    /**
+     * 会话仍然映射到之前的出口ip时，尝试复用这个ip上已经完成握手的连接
+     */
+    private boolean reuseKeepAlive(ActiveProxyIp activeProxyIp) {
+        Protocol protocol = ProtocolManager.chooseUpstreamProtocol(Protocol.HTTP,
+                activeProxyIp.getIpPool().getRuntimeIpSource().getSupportProtocolList());
+        if (protocol == null) {
+            return false;
+        }
+        String key = ActiveProxyIp.keepAliveKey(protocol, target);
+        Channel channel = activeProxyIp.pollKeepAlive(key);
+        if (channel == null) {
+            return false;
+        }
+        recorder.recordEvent(() -> "reuse keep-alive connection: " + key);
+        onUpstreamReady(channel, protocol, key);
+        return true;
+    }
+
+    @Override
+    public void onHandSharkFinished(Channel upstreamChannel, @Nullable Protocol outboundProtocol) {
+        ctx.executor().execute(() -> {
+            if (!ctx.channel().isActive() || state != State.CONNECTING) {
+                recorder.recordEvent("session closed after handShark finished");
+                upstreamChannel.close();
+                return;
+            }
+            upstreamChannel.pipeline().addLast(UPSTREAM_CODEC, new HttpClientCodec());
+            onUpstreamReady(upstreamChannel, outboundProtocol, outboundProtocol == null ? null :
+                    ActiveProxyIp.keepAliveKey(outboundProtocol, target));
+        });
+    }
+
+    @Override
+    public void onHandSharkError(Throwable e) {
+        ctx.executor().execute(() -> {
+            recorder.recordEvent(() -> "onHandSharkError error", e);
+            NettyUtil.httpResponseText(ctx.channel(),
+                    HttpResponseStatus.BAD_GATEWAY,
+                    "http proxy system error\n " + NettyUtil.throwableMsg(e));
+        });
+    }
+
+    private void onUpstreamReady(Channel upstreamChannel, @Nullable Protocol outboundProtocol, @Nullable String keepAliveKey) {
+        this.upstreamChannel = upstreamChannel;
+        this.keepAliveKey = keepAliveKey;
+        this.traffic = session.openExchange(upstreamChannel);
+        this.relay = new ResponseRelay(request.method(), clientKeepAlive, traffic);
+        upstreamChannel.pipeline().addLast(relay);
+
+        attachUpstreamAuth(upstreamChannel, outboundProtocol, request);
+        state = State.EXCHANGING;
+        upstreamChannel.write(request);
+        request = null;
+        drain();
+    }
+
+    private void attachUpstreamAuth(Channel upstreamChannel, Protocol outboundProtocol, HttpRequest httpRequest) {
+        if (outboundProtocol != Protocol.HTTP) {
+            return;
+        }
+        String httpAuthenticationHeader = ActiveProxyIp.getBinding(upstreamChannel)
+                .buildHttpAuthenticationInfo();
+        if (httpAuthenticationHeader != null) {
+            httpRequest.headers().set(HttpHeaderNames.PROXY_AUTHORIZATION, httpAuthenticationHeader);
+        }
+    }
+
+    /**
+     * 响应已经完整写给用户，根据双方的keep-alive状态决定上游连接和用户连接的去留
+     */
+    private void onResponseFinished(ResponseRelay finishedRelay, boolean reusable, boolean writeSuccess) {
+        if (finishedRelay != relay) {
+            return;
+        }
+        Channel upstream = upstreamChannel;
+        upstreamChannel = null;
+        relay = null;
+        traffic.close();
+        traffic = null;
+        state = State.IDLE;
+
+        ActiveProxyIp activeProxyIp = ActiveProxyIp.getBinding(upstream);
+        if (reusable && requestFinished && keepAliveKey != null && activeProxyIp != null && upstream.isActive()) {
+            upstream.pipeline().remove(finishedRelay);
+            upstream.config().setAutoRead(true);
+            recorder.recordEvent(() -> "return upstream connection to keep-alive pool");
+            activeProxyIp.offerKeepAlive(keepAliveKey, upstream);
+        } else {
+            upstream.close();
+        }
+
+        if (!writeSuccess || !finishedRelay.responseKeepAlive || !requestFinished) {
+            // 请求body没有发送完成时剩余的数据无法再对应到一个请求，只能关闭用户连接
+            NettyUtil.closeOnFlush(ctx.channel());
+            return;
+        }
+        ctx.channel().config().setAutoRead(true);
+        drain();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable() && relay != null && !relay.finished) {
+            upstreamChannel.config().setAutoRead(true);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (upstreamChannel != null) {
+            // 响应还没有结束，上游连接不能再复用
+            upstreamChannel.close();
+            upstreamChannel = null;
+        }
+        if (traffic != null) {
+            traffic.close();
+            traffic = null;
+        }
+        releasePending();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releasePending();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        recorder.recordEvent(() -> "http forward exception", cause);
+        ctx.close();
+    }
+
+    private void releasePending() {
+        pending.releaseAll();
+    }
+
+    private enum State {
+        IDLE,
+        /**
+         * 正在选择上游或者握手，此时不读取用户数据
+         */
+        CONNECTING,
+        EXCHANGING
+    }
+
+    /**
+     * 上游连接上的响应转发，每个请求一个实例，运行在上游连接的eventLoop上
+     */
+    private class ResponseRelay extends ChannelInboundHandlerAdapter {
+        private final HttpMethod method;
+        private final boolean clientKeepAlive;
+        private final TunnelTraffic traffic;
+        private final Channel inboundChannel = ctx.channel();
+        private HttpResponse response;
+        /**
+         * 上游响应自身的keep-alive状态，删除逐跳头部之前记录
+         */
+        private boolean upstreamKeepAlive;
+        /**
+         * 返回给用户的响应是否保持用户连接，在响应结束之后才会被用户连接的eventLoop读取
+         */
+        private volatile boolean responseKeepAlive = false;
+        private volatile boolean finished = false;
+
+        ResponseRelay(HttpMethod method, boolean clientKeepAlive, TunnelTraffic traffic) {
+            this.method = method;
+            this.clientKeepAlive = clientKeepAlive;
+            this.traffic = traffic;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext upstreamCtx, Object msg) {
+            if (finished || !(msg instanceof HttpObject)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (msg instanceof HttpResponse) {
+                onResponseHead((HttpResponse) msg);
+            }
+            if (msg instanceof HttpContent) {
+                traffic.onDownload(((HttpContent) msg).content().readableBytes());
+            }
+            if (!(msg instanceof LastHttpContent)) {
+                inboundChannel.write(msg);
+                if (!inboundChannel.isWritable()) {
+                    upstreamCtx.channel().config().setAutoRead(false);
+                }
+                return;
+            }
+            if (response != null && response.status().codeClass() == HttpStatusClass.INFORMATIONAL
+                    && response.status().code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+                // 100-continue等中间响应，后面还有最终响应
+                response = null;
+                inboundChannel.writeAndFlush(msg);
+                return;
+            }
+            finished = true;
+            boolean reusable = isReusable();
+            // 连接归还之前不再读取，避免不规范的上游在响应结束之后继续发送数据
+            upstreamCtx.channel().config().setAutoRead(false);
+            ChannelFuture future = inboundChannel.writeAndFlush(msg);
+            future.addListener(it -> onResponseFinished(this, reusable, it.isSuccess()));
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext upstreamCtx) {
+            inboundChannel.flush();
+        }
+
+        /**
+         * 删除上游这一跳的逐跳头部，按照用户连接自己的状态重新设置keep-alive
+         */
+        private void onResponseHead(HttpResponse httpResponse) {
+            response = httpResponse;
+            upstreamKeepAlive = HttpUtil.isKeepAlive(httpResponse);
+            NettyUtil.removeHopByHopHeaders(httpResponse);
+            if (httpResponse.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                return;
+            }
+            // body只能通过关闭连接来结束时，用户连接也不能保持
+            responseKeepAlive = clientKeepAlive && isBodyDelimited();
+            HttpUtil.setKeepAlive(httpResponse, responseKeepAlive);
+        }
+
+        /**
+         * 只有响应体长度可以确定时，连接上才能继续发送下一个请求
+         */
+        private boolean isReusable() {
+            return upstreamKeepAlive && isBodyDelimited();
+        }
+
+        private boolean isBodyDelimited() {
+            if (response == null) {
+                return false;
+            }
+            int code = response.status().code();
+            if (code == HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+                return false;
+            }
+            return HttpUtil.isContentLengthSet(response)
+                    || HttpUtil.isTransferEncodingChunked(response)
+                    || code == HttpResponseStatus.NO_CONTENT.code()
+                    || code == HttpResponseStatus.NOT_MODIFIED.code()
+                    || HttpMethod.HEAD.equals(method);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext upstreamCtx) throws Exception {
+            // 上游恢复可写，继续读取用户的请求body
+            if (upstreamCtx.channel().isWritable()) {
+                ctx.executor().execute(() -> {
+                    if (relay == this && !requestFinished && pending.isEmpty()) {
+                        ctx.channel().config().setAutoRead(true);
+                    }
+                });
+            }
+            super.channelWritabilityChanged(upstreamCtx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext upstreamCtx) throws Exception {
+            if (!finished) {
+                recorder.recordEvent("upstream closed before response finished");
+                NettyUtil.closeOnFlush(inboundChannel);
+            }
+            super.channelInactive(upstreamCtx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext upstreamCtx, Throwable cause) {
+            recorder.recordEvent(() -> "http forward upstream exception", cause);
+            upstreamCtx.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package cn.iinti.proxycompose.proxy.inbound.handlers;
+
+import cn.iinti.proxycompose.Settings;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上游连接建立期间缓存的http数据，数据在隧道建立之后按序重放。<br>
+ * 使用方在缓存之前已经关闭了autoRead，但是一次读循环中已经读取的字节仍然会被解码送达，所以这里按照body字节数计量，
+ * 超过上限时释放全部缓存，由使用方拒绝请求并关闭连接。
+ * 缓存的字节数同时汇总到所属ProxyServer上，只在用户连接的eventLoop中访问
+ */
+class PendingHttpObjects {
+    private final ArrayDeque<HttpObject> queue = new ArrayDeque<>();
+    private final LongAdder serverPendingBytes;
+    private final int maxPendingBytes = Settings.global.httpPendingMaxBytes.value;
+    private long pendingBytes = 0;
+    private boolean overflow = false;
+
+    PendingHttpObjects(LongAdder serverPendingBytes) {
+        this.serverPendingBytes = serverPendingBytes;
+    }
+
+    /**
+     * @return false代表缓存超过上限，此时缓存的数据（包括本次的httpObject）已经全部释放，之后加入的数据也会直接释放
+     */
+    boolean add(HttpObject httpObject) {
+        if (overflow) {
+            ReferenceCountUtil.release(httpObject);
+            return false;
+        }
+        queue.add(httpObject);
+        int bytes = sizeOf(httpObject);
+        if (bytes == 0) {
+            return true;
+        }
+        pendingBytes += bytes;
+        serverPendingBytes.add(bytes);
+        if (pendingBytes <= maxPendingBytes) {
+            return true;
+        }
+        overflow = true;
+        releaseAll();
+        return false;
+    }
+
+    HttpObject poll() {
+        HttpObject httpObject = queue.poll();
+        if (httpObject != null) {
+            int bytes = sizeOf(httpObject);
+            pendingBytes -= bytes;
+            serverPendingBytes.add(-bytes);
+        }
+        return httpObject;
+    }
+
+    HttpObject peekLast() {
+        return queue.peekLast();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    void releaseAll() {
+        HttpObject httpObject;
+        while ((httpObject = poll()) != null) {
+            ReferenceCountUtil.release(httpObject);
+        }
+    }
+
+    private static int sizeOf(HttpObject httpObject) {
+        return httpObject instanceof HttpContent ? ((HttpContent) httpObject).content().readableBytes() : 0;
+    }
+}
@@ -2,6 +2,7 @@ package cn.iinti.proxycompose.proxy.inbound.handlers;
 
 
 import cn.iinti.proxycompose.Settings;
+import cn.iinti.proxycompose.metrics.ConnectStage;
 import cn.iinti.proxycompose.resource.IpAndPort;
 import cn.iinti.proxycompose.proxy.Session;
 import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
@@ -11,8 +12,10 @@ import cn.iinti.proxycompose.proxy.switcher.UpstreamHandSharkCallback;
 import cn.iinti.proxycompose.utils.NettyUtil;
 import cn.iinti.proxycompose.trace.Recorder;
 import com.google.common.io.BaseEncoding;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.util.ReferenceCountUtil;
 import org.apache.commons.lang3.StringUtils;
@@ -20,10 +23,8 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import javax.annotation.Nullable;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.List;
-import java.util.Queue;
 
 public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
         implements UpstreamHandSharkCallback {
@@ -33,10 +34,15 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
     protected ChannelHandlerContext ctx = null;
     protected HttpRequest httpRequest;
 
-    protected Queue<HttpObject> httpObjects;
+    protected PendingHttpObjects httpObjects;
 
     private Session session;
 
+    /**
+     * 字节转发模式下的上游连接，卸载http解码器时残留的原始字节直接写到这里
+     */
+    private Channel rawRelayUpstream;
+
     public ProxyHttpHandler(Recorder recorder, boolean isHttps) {
         this.isHttps = isHttps;
         this.recorder = recorder;
@@ -46,6 +52,11 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         this.ctx = ctx;
+        if (rawRelayUpstream != null && msg instanceof ByteBuf) {
+            // 卸载http解码器时还没有被解析的字节，需要保证在后续转发的数据之前写到上游
+            rawRelayUpstream.write(msg);
+            return;
+        }
         if (!initRequest(msg)) {
             return;
         }
@@ -58,7 +69,8 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
             // 客户端重新发起鉴权，所以之前的请求就需要清空
             releaseHttpObjects();
             httpRequest = (HttpRequest) msg;
-            httpObjects = new ArrayDeque<>();
+            httpObjects = new PendingHttpObjects(
+                    Session.get(ctx.channel()).getProxyServer().getPendingRequestBytes());
             recorder.recordEvent(() -> "http request");
             if (!isHttps) {
                 httpObjects.add(httpRequest);
@@ -67,7 +79,17 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
             // 会有 DefaultLastHttpContent , DefaultHttpContent 进来
             // 即使我们设置了不允许读，所以我们吧已经解析到内存的数据保存下，
             // 等到我们卸载当然handler的时候一并写到上游
-            httpObjects.add((HttpObject) msg);
+            if (httpObjects == null) {
+                // 鉴权失败的请求已经响应过了，剩余的body直接丢弃
+                ReferenceCountUtil.release(msg);
+                return false;
+            }
+            if (!httpObjects.add((HttpObject) msg)) {
+                recorder.recordEvent(() -> "pending request body exceed limit, reject request");
+                httpObjects = null;
+                NettyUtil.httpResponseText(ctx.channel(), HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, null);
+                return false;
+            }
             recorder.recordEvent(() -> "httpObject:" + msg.getClass().getName());
             return false;
         } else {
@@ -86,9 +108,7 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
 
     protected void releaseHttpObjects() {
         if (httpObjects != null) {
-            for (HttpObject httpObject : httpObjects) {
-                ReferenceCountUtil.release(httpObject);
-            }
+            httpObjects.releaseAll();
         }
         httpObjects = null;
     }
@@ -100,6 +120,8 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
             while ((b = httpObjects.poll()) != null) {
                 ctx.fireChannelRead(b);
             }
+            // 缓存的数据不是来自一次真实的读循环，需要补发readComplete，让后续RelayHandler完成flush
+            ctx.fireChannelReadComplete();
         }
         ctx.flush();
         httpObjects = null;
@@ -127,6 +149,12 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
         if (!prepare()) {
             return;
         }
+        if (!isHttps && Settings.global.httpForwardMode.value) {
+            // 正向代理模式下由HttpForwardHandler逐个请求转发，本handler卸载时缓存的请求会转交给它
+            recorder.recordEvent("switch to http forward mode");
+            ctx.pipeline().replace(this, null, new HttpForwardHandler(session));
+            return;
+        }
         // 暂停读
         ctx.channel().config().setAutoRead(false);
         OutboundConnectTask.startConnectOutbound(session, this);
@@ -135,14 +163,17 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
 
     private boolean prepare() {
         if (!session.isAuthed()) {
+            long authStart = System.nanoTime();
             Pair<String, String> userPwd = extractUserPwd(httpRequest);
             // remove PROXY_AUTHORIZATION after extract
             httpRequest.headers().remove(HttpHeaderNames.PROXY_AUTHORIZATION);
             session.setAuthed(Settings.global.authRules.doAuth(userPwd.getLeft(), userPwd.getRight()));
+            session.recordStageSince(ConnectStage.AUTH, authStart);
         }
 
         if (!session.isAuthed()) {
             recorder.recordEvent("auth failed, write 407");
+            releaseHttpObjects();
             writeAuthenticationRequired();
             return false;
         }
@@ -221,8 +252,14 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
                 return;
             }
 
-            ChannelFuture future = isHttps ? onHttpsHandShark(upstreamChannel) :
-                    onHttpHandleShark(upstreamChannel, outboundProtocol);
+            ChannelFuture future;
+            if (isHttps) {
+                future = onHttpsHandShark(upstreamChannel);
+            } else if (canRawRelay()) {
+                future = onHttpRawHandShark(upstreamChannel, outboundProtocol);
+            } else {
+                future = onHttpHandleShark(upstreamChannel, outboundProtocol);
+            }
             future.addListener((ChannelFutureListener) setupFuture -> {
                 if (!setupFuture.isSuccess()) {
                     return;
@@ -262,7 +299,7 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
             return;
         }
         httpRequest.headers().add(HttpHeaderNames.PROXY_AUTHORIZATION, httpAuthenticationHeader);
-        recorder.recordEvent(() -> "fill authorizationContent: " + httpAuthenticationHeader);
+        recorder.recordMosaicMsgIfSubscribeRecorder(() -> "fill authorizationContent: " + httpAuthenticationHeader);
 
     }
 
@@ -279,15 +316,60 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
         return upstreamChannel.newSucceededFuture();
     }
 
+    /**
+     * chunked的请求body可能被解码器切分成不完整的chunk，重新编码之后的分块和后续原始字节对不上，
+     * 这种情况只能继续使用编解码转发
+     */
+    private boolean canRawRelay() {
+        if (!Settings.global.httpRawRelay.value || httpObjects == null || httpObjects.isEmpty()) {
+            return false;
+        }
+        if (!HttpUtil.isTransferEncodingChunked(httpRequest)) {
+            return true;
+        }
+        if (httpObjects.peekLast() instanceof LastHttpContent) {
+            return true;
+        }
+        recorder.recordEvent("chunked request body not finished, can not use raw relay");
+        return false;
+    }
+
+    private ChannelFuture onHttpRawHandShark(Channel upstreamChannel, @Nullable Protocol outboundProtocol) {
+        attachUpstreamAuth(upstreamChannel, outboundProtocol, httpRequest);
+
+        // 响应可能在转发handler安装之前就到达，所以在隧道建立之前先暂停读取上游
+        upstreamChannel.config().setAutoRead(false);
+
+        // 只有已经解析的请求需要重新编码，之后两端都直接转发字节
+        EmbeddedChannel encoder = new EmbeddedChannel(new HttpRequestEncoder());
+        HttpObject httpObject;
+        while ((httpObject = httpObjects.poll()) != null) {
+            encoder.writeOutbound(httpObject);
+        }
+        encoder.finish();
+        ByteBuf encoded;
+        while ((encoded = encoder.readOutbound()) != null) {
+            upstreamChannel.write(encoded);
+        }
+        httpObjects = null;
+
+        rawRelayUpstream = upstreamChannel;
+        session.getInboundChannel().pipeline().remove(HttpServerCodec.class);
+        upstreamChannel.flush();
+
+        recorder.recordEvent(() -> "start http raw tuning");
+        session.replay(upstreamChannel, true);
+        upstreamChannel.config().setAutoRead(true);
+        return upstreamChannel.newSucceededFuture();
+    }
+
     private ChannelFuture onHttpsHandShark(Channel upstreamChannel) {
         recorder.recordEvent(() -> "do https forward");
         DefaultFullHttpResponse connectEstablishResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED);
         connectEstablishResponse.headers().add(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
         NettyUtil.addVia(connectEstablishResponse, "virjar-spider-ha-proxy");
-        Queue<HttpObject> httpObjects = this.httpObjects;
-        if (httpObjects != null) {
-            httpObjects.clear();
-        }
+        // CONNECT之后的数据不再是http报文，缓存的数据直接丢弃
+        releaseHttpObjects();
 
         ChannelPromise channelPromise = upstreamChannel.newPromise();
 
@@ -304,7 +386,7 @@ public class ProxyHttpHandler extends ChannelInboundHandlerAdapter
                         ChannelPipeline inboundPipeline = session.getInboundChannel().pipeline();
                         inboundPipeline.remove(HttpServerCodec.class);
                         recorder.recordEvent(() -> "start https replay tuning");
-                        session.replay(upstreamChannel);
+                        session.replay(upstreamChannel, true);
                         channelPromise.trySuccess();
                     } catch (Throwable e) {
                         recorder.recordEvent(() -> "setup onHttpsHandShark error", e);
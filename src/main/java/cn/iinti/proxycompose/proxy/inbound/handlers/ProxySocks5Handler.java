@@ -2,23 +2,30 @@ package cn.iinti.proxycompose.proxy.inbound.handlers;
 
 
 import cn.iinti.proxycompose.Settings;
+import cn.iinti.proxycompose.metrics.ConnectStage;
 import cn.iinti.proxycompose.resource.IpAndPort;
 import cn.iinti.proxycompose.proxy.Session;
+import cn.iinti.proxycompose.proxy.outbound.handshark.HandShakerSocks5;
 import cn.iinti.proxycompose.proxy.outbound.handshark.Protocol;
+import cn.iinti.proxycompose.proxy.outbound.handshark.SocksUdpAssociateRequest;
 import cn.iinti.proxycompose.proxy.switcher.OutboundConnectTask;
 import cn.iinti.proxycompose.proxy.switcher.UpstreamHandSharkCallback;
+import cn.iinti.proxycompose.utils.NettyThreadPools;
 import cn.iinti.proxycompose.utils.NettyUtil;
 import cn.iinti.proxycompose.utils.IpUtils;
 import cn.iinti.proxycompose.trace.Recorder;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
 import io.netty.handler.codec.socks.*;
 
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.util.List;
 
 public class ProxySocks5Handler extends SimpleChannelInboundHandler<SocksRequest>
         implements UpstreamHandSharkCallback {
     private ChannelHandlerContext ctx;
-    private SocksCmdRequest req;
+    private SocksAddressType requestAddressType;
     private Session session;
     private Recorder recorder;
 
@@ -49,17 +56,19 @@ public class ProxySocks5Handler extends SimpleChannelInboundHandler<SocksRequest
 
     private void handleAuth(ChannelHandlerContext ctx, SocksAuthRequest socksRequest) {
         if (session.isAuthed()) {
-            ctx.pipeline().addFirst(new SocksCmdRequestDecoder());
+            ctx.pipeline().addFirst(new Socks5CmdRequestDecoder());
             ctx.writeAndFlush(new SocksAuthResponse(SocksAuthStatus.SUCCESS));
             return;
         }
 
+        long authStart = System.nanoTime();
         String username = socksRequest.username();
         String password = socksRequest.password();
         session.setAuthed(Settings.global.authRules.doAuth(username, password));
+        session.recordStageSince(ConnectStage.AUTH, authStart);
 
         if (session.isAuthed()) {
-            ctx.pipeline().addFirst(new SocksCmdRequestDecoder());
+            ctx.pipeline().addFirst(new Socks5CmdRequestDecoder());
             ctx.writeAndFlush(new SocksAuthResponse(SocksAuthStatus.SUCCESS));
             return;
         }
@@ -73,7 +82,7 @@ public class ProxySocks5Handler extends SimpleChannelInboundHandler<SocksRequest
         // 对于socks代理来说，ip鉴权和密码鉴权是两个步骤，所以需要提前判定,先鉴权IP，然后鉴权密码
         if (session.isAuthed()) {
             recorder.recordEvent(() -> "has been authed");
-            ctx.pipeline().addFirst(new SocksCmdRequestDecoder());
+            ctx.pipeline().addFirst(new Socks5CmdRequestDecoder());
             ctx.writeAndFlush(new SocksInitResponse(SocksAuthScheme.NO_AUTH));
             return;
         }
@@ -96,8 +105,17 @@ public class ProxySocks5Handler extends SimpleChannelInboundHandler<SocksRequest
     }
 
     private void handleCmd(ChannelHandlerContext ctx, SocksRequest socksRequest) {
-        req = (SocksCmdRequest) socksRequest;
-        //TODO 实现UDP转发
+        if (socksRequest instanceof SocksUdpAssociateRequest) {
+            SocksUdpAssociateRequest udpRequest = (SocksUdpAssociateRequest) socksRequest;
+            requestAddressType = udpRequest.getAddressType();
+            // udp associate的目标是用户发送报文的地址，这里只用于记录，实际转发目标在每个报文的头部
+            session.setUdpAssociate(true);
+            session.onProxyTargetResolved(new IpAndPort(udpRequest.getHost(), udpRequest.getPort()), Protocol.SOCKS5);
+            OutboundConnectTask.startConnectOutbound(session, this);
+            return;
+        }
+        SocksCmdRequest req = (SocksCmdRequest) socksRequest;
+        requestAddressType = req.addressType();
         if (req.cmdType() != SocksCmdType.CONNECT) {
             recorder.recordEvent(() -> "not support s5 cmd: " + req.cmdType());
             ctx.close();
@@ -117,6 +135,10 @@ public class ProxySocks5Handler extends SimpleChannelInboundHandler<SocksRequest
     @Override
     public void onHandSharkFinished(Channel upstreamChannel, Protocol outboundProtocol) {
         NettyUtil.loveOther(session.getInboundChannel(), upstreamChannel);
+        if (session.isUdpAssociate()) {
+            ctx.channel().eventLoop().execute(() -> startUdpRelay(upstreamChannel));
+            return;
+        }
         ctx.channel().eventLoop().execute(() -> {
             IpAndPort connectTarget = session.getConnectTarget();
             SocksCmdResponse socksCmdResponse = new SocksCmdResponse(SocksCmdStatus.SUCCESS,
@@ -133,15 +155,59 @@ public class ProxySocks5Handler extends SimpleChannelInboundHandler<SocksRequest
                         pipeline.remove(SocksMessageEncoder.class);
                         pipeline.remove(ProxySocks5Handler.class);
                         recorder.recordEvent(() -> "start socks5 replay tuning");
-                        session.replay(upstreamChannel);
+                        session.replay(upstreamChannel, true);
                     });
         });
 
     }
 
+    /**
+     * 在控制连接所在ip上绑定一个udp端口，用户和上游的报文都通过这个端口转发，
+     * 控制连接（或者上游控制连接）关闭时udp端口跟随关闭
+     */
+    private void startUdpRelay(Channel upstreamChannel) {
+        Channel inbound = ctx.channel();
+        InetSocketAddress upstreamRelay = upstreamChannel.attr(HandShakerSocks5.UDP_RELAY_ADDRESS).get();
+        InetSocketAddress localAddress = (InetSocketAddress) inbound.localAddress();
+        InetSocketAddress clientAddress = (InetSocketAddress) inbound.remoteAddress();
+        InetSocketAddress upstreamServer = (InetSocketAddress) upstreamChannel.remoteAddress();
+        session.onForwardUpstream(upstreamChannel);
+
+        new Bootstrap()
+                .group(inbound.eventLoop())
+                .channel(NettyThreadPools.datagramChannelClass())
+                .handler(new Socks5UdpRelayHandler(session, clientAddress.getAddress(),
+                        upstreamRelay, upstreamServer.getAddress()))
+                .bind(localAddress.getAddress(), 0)
+                .addListener((ChannelFutureListener) bindFuture -> {
+                    if (!bindFuture.isSuccess()) {
+                        recorder.recordEvent(() -> "bind udp relay port failed", bindFuture.cause());
+                        onHandSharkError(bindFuture.cause());
+                        return;
+                    }
+                    Channel udpChannel = bindFuture.channel();
+                    NettyUtil.loveOther(inbound, udpChannel);
+                    InetSocketAddress bindAddress = (InetSocketAddress) udpChannel.localAddress();
+                    SocksCmdResponse socksCmdResponse = new SocksCmdResponse(SocksCmdStatus.SUCCESS,
+                            bindAddress.getAddress() instanceof Inet4Address ? SocksAddressType.IPv4 : SocksAddressType.IPv6,
+                            bindAddress.getAddress().getHostAddress(), bindAddress.getPort()
+                    );
+                    inbound.writeAndFlush(socksCmdResponse).addListener(future -> {
+                        if (!future.isSuccess()) {
+                            recorder.recordEvent(() -> "socket closed when write socks success", future.cause());
+                            return;
+                        }
+                        ChannelPipeline pipeline = ctx.pipeline();
+                        pipeline.remove(SocksMessageEncoder.class);
+                        pipeline.remove(ProxySocks5Handler.class);
+                        recorder.recordEvent(() -> "start socks5 udp relay: " + bindAddress + " -> " + upstreamRelay);
+                    });
+                });
+    }
+
     @Override
     public void onHandSharkError(Throwable e) {
-        ctx.channel().writeAndFlush(new SocksCmdResponse(SocksCmdStatus.FAILURE, req.addressType()))
+        ctx.channel().writeAndFlush(new SocksCmdResponse(SocksCmdStatus.FAILURE, requestAddressType))
                 .addListener(ChannelFutureListener.CLOSE);
     }
 
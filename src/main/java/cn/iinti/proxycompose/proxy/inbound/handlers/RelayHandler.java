@@ -1,24 +1,42 @@
 package cn.iinti.proxycompose.proxy.inbound.handlers;
 
 
+import cn.iinti.proxycompose.Settings;
 import cn.iinti.proxycompose.trace.Recorder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.ReferenceCountUtil;
 
+import java.util.function.LongConsumer;
+
+/**
+ * 隧道转发，RelayHandler总是成对出现（上下游各一个），
+ * 当对端channel写缓冲超过高水位时暂停读取本channel，对端回落到低水位后由对端的RelayHandler恢复读取
+ */
 public final class RelayHandler extends ChannelInboundHandlerAdapter {
+    private static final boolean consolidateFlush = Settings.global.relayConsolidateFlush.value;
 
     private final Channel nextChannel;
     private final String TAG;
 
     private final Recorder recorder;
 
-    public RelayHandler(Channel relayChannel, String tag, Recorder recorder) {
+    /**
+     * 流量统计，参数为本次转发的字节数
+     */
+    private final LongConsumer trafficCounter;
+
+    private boolean pendingFlush = false;
+
+    public RelayHandler(Channel relayChannel, String tag, Recorder recorder, LongConsumer trafficCounter) {
         this.nextChannel = relayChannel;
         this.TAG = tag;
         this.recorder = recorder;
+        this.trafficCounter = trafficCounter;
     }
 
     @Override
@@ -29,19 +47,64 @@ public final class RelayHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         recorder.recordEvent("channel channelInactive");
+        flushIfPending();
         super.channelInactive(ctx);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushIfPending();
+        super.channelReadComplete(ctx);
+    }
+
+    private void flushIfPending() {
+        if (pendingFlush) {
+            pendingFlush = false;
+            nextChannel.flush();
+        }
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        recorder.recordEvent(TAG + ": receive message: " + msg);
-        if (nextChannel.isActive()) {
-            nextChannel.writeAndFlush(msg);
-        } else {
+        if (recorder.isEnabled()) {
+            recorder.recordEvent(() -> TAG + ": receive message: " + msg);
+        }
+        if (!nextChannel.isActive()) {
             ReferenceCountUtil.release(msg);
+            return;
+        }
+        // 需要在write之前统计，write之后msg可能已经被释放
+        // 明文http下上游是HttpObject，这里只能统计body部分
+        if (msg instanceof ByteBuf) {
+            trafficCounter.accept(((ByteBuf) msg).readableBytes());
+        } else if (msg instanceof ByteBufHolder) {
+            trafficCounter.accept(((ByteBufHolder) msg).content().readableBytes());
+        }
+        if (consolidateFlush) {
+            nextChannel.write(msg);
+            pendingFlush = true;
+        } else {
+            nextChannel.writeAndFlush(msg);
+        }
+        if (!nextChannel.isWritable()) {
+            Channel channel = ctx.channel();
+            channel.config().setAutoRead(false);
+            // 设置autoRead之前对端可能已经恢复可写，此时对端的writabilityChanged已经错过了，需要再检查一次
+            if (nextChannel.isWritable()) {
+                channel.config().setAutoRead(true);
+            }
         }
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 本channel恢复可写，那么恢复读取给本channel写数据的对端
+        if (ctx.channel().isWritable() && nextChannel.isActive()) {
+            nextChannel.config().setAutoRead(true);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
@@ -55,4 +118,3 @@ public final class RelayHandler extends ChannelInboundHandlerAdapter {
 
     }
 }
-
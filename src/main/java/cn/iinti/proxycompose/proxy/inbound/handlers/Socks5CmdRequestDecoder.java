@@ -0,0 +1,57 @@
+package cn.iinti.proxycompose.proxy.inbound.handlers;
+
+import cn.iinti.proxycompose.proxy.outbound.handshark.SocksUdpAssociateRequest;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.socks.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NetUtil;
+
+import java.util.List;
+
+/**
+ * 替代netty的SocksCmdRequestDecoder，解码逻辑一致，
+ * 区别是udp associate解码为{@link SocksUdpAssociateRequest}，允许客户端填写0端口
+ */
+class Socks5CmdRequestDecoder extends ReplayingDecoder<Void> {
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf byteBuf, List<Object> out) {
+        if (byteBuf.readByte() != SocksProtocolVersion.SOCKS5.byteValue()) {
+            out.add(new UnknownSocksRequest());
+            ctx.pipeline().remove(this);
+            return;
+        }
+        SocksCmdType cmdType = SocksCmdType.valueOf(byteBuf.readByte());
+        byteBuf.skipBytes(1);
+        SocksAddressType addressType = SocksAddressType.valueOf(byteBuf.readByte());
+
+        String host;
+        switch (addressType) {
+            case IPv4:
+                host = NetUtil.intToIpAddress(byteBuf.readInt());
+                break;
+            case DOMAIN:
+                host = byteBuf.readCharSequence(byteBuf.readUnsignedByte(), CharsetUtil.US_ASCII).toString();
+                break;
+            case IPv6:
+                byte[] bytes = new byte[16];
+                byteBuf.readBytes(bytes);
+                host = NetUtil.bytesToIpAddress(bytes);
+                break;
+            default:
+                out.add(new UnknownSocksRequest());
+                ctx.pipeline().remove(this);
+                return;
+        }
+        int port = byteBuf.readUnsignedShort();
+
+        if (cmdType == SocksCmdType.UDP) {
+            out.add(new SocksUdpAssociateRequest(addressType, host, port));
+        } else {
+            out.add(new SocksCmdRequest(cmdType, addressType, host, port));
+        }
+        ctx.pipeline().remove(this);
+    }
+}
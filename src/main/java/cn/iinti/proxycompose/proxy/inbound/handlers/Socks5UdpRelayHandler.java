@@ -0,0 +1,100 @@
+package cn.iinti.proxycompose.proxy.inbound.handlers;
+
+import cn.iinti.proxycompose.proxy.Session;
+import cn.iinti.proxycompose.trace.Recorder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * socks5 udp转发，一个udp associate对应一个本地udp端口，用户和上游代理服务器的报文都经过这个端口。<br>
+ * 用户发出的报文和上游返回的报文都是socks5 udp格式（带有目标地址的头部），两侧格式一致，
+ * 所以这里只根据报文来源改写目的地址，报文内容原样转发，不需要解析和拷贝。<br>
+ * 端口绑定在用户控制连接的eventLoop上，转发过程没有线程切换
+ */
+class Socks5UdpRelayHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+    private final Session session;
+    private final Recorder recorder;
+    /**
+     * 只接受和控制连接来自同一个ip的用户报文
+     */
+    private final InetAddress clientAddress;
+    /**
+     * 上游代理服务器返回的转发地址，已经是解析好的ip
+     */
+    private final InetSocketAddress upstreamRelay;
+    /**
+     * 上游控制连接的服务器ip，多网卡的代理服务器可能从这个ip回包
+     */
+    private final InetAddress upstreamServer;
+    /**
+     * 用户发送udp报文的地址，收到用户的第一个报文之后才能确定
+     */
+    private InetSocketAddress clientRelay;
+
+    Socks5UdpRelayHandler(Session session, InetAddress clientAddress,
+                          InetSocketAddress upstreamRelay, InetAddress upstreamServer) {
+        this.session = session;
+        this.recorder = session.getRecorder();
+        this.clientAddress = clientAddress;
+        this.upstreamRelay = upstreamRelay;
+        this.upstreamServer = upstreamServer;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+        InetSocketAddress sender = packet.sender();
+        int size = packet.content().readableBytes();
+        if (isFromUpstream(sender)) {
+            if (clientRelay == null) {
+                return;
+            }
+            session.onDownload(size);
+            ctx.write(new DatagramPacket(packet.content().retain(), clientRelay));
+            return;
+        }
+        if (!sender.getAddress().equals(clientAddress)) {
+            recorder.recordEvent(() -> "drop udp packet from unknown sender: " + sender);
+            return;
+        }
+        if (!sender.equals(clientRelay)) {
+            recorder.recordEvent(() -> "client udp address: " + sender);
+            clientRelay = sender;
+        }
+        session.onUpload(size);
+        ctx.write(new DatagramPacket(packet.content().retain(), upstreamRelay));
+    }
+
+    /**
+     * 上游在NAT之后或者是多网卡服务器时，回包的端口甚至ip可能和声明的转发地址不同，
+     * 所以转发地址和控制连接的服务器ip都按ip匹配（不比较端口）。
+     * 用户和上游在同一个ip时（如本机测试）无法按ip区分，只有完全匹配转发地址的报文才认为来自上游
+     */
+    private boolean isFromUpstream(InetSocketAddress sender) {
+        if (sender.equals(upstreamRelay)) {
+            return true;
+        }
+        if (sender.equals(clientRelay)) {
+            return false;
+        }
+        InetAddress senderAddress = sender.getAddress();
+        if (senderAddress.equals(clientAddress)) {
+            return false;
+        }
+        return senderAddress.equals(upstreamRelay.getAddress()) || senderAddress.equals(upstreamServer);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.flush();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        // icmp不可达等错误只影响单个报文，udp端口的生命周期跟随控制连接
+        recorder.recordEvent(() -> "udp relay error", cause);
+    }
+}
@@ -0,0 +1,171 @@
+package cn.iinti.proxycompose.proxy.inbound.handlers;
+
+
+import cn.iinti.proxycompose.trace.Recorder;
+import cn.iinti.proxycompose.utils.NettyThreadPools;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
+
+/**
+ * epoll下的零拷贝转发，数据通过splice直接在内核中从一个socket搬运到另一个socket，不再进入用户态。
+ * 只用于不需要再解析报文的纯tcp隧道（https connect、socks5）<br>
+ * 请注意：
+ * <ul>
+ *     <li>splice要求两个channel注册在同一个eventLoop上（需要开启upstreamColocate），否则回退到{@link RelayHandler}</li>
+ *     <li>netty的splice在对端关闭时splice返回0，和EAGAIN无法区分，LT模式下会空转。
+ *     所以每次readComplete时检查tcp状态，对端已经发送FIN之后，socket中剩余的数据改为读取到用户态，
+ *     交给{@link RelayHandler}转发，读到EOF并且to把排在前面的splice数据写完之后才关闭隧道。
+ *     tcp状态只用来触发这个切换，不作为流结束的依据</li>
+ *     <li>splice的数据不经过用户态，只能按块统计流量：每完成{@link #SPLICE_CHUNK}字节计数一次并续上下一块。
+ *     netty没有暴露一块之内已经搬运的字节数，隧道关闭时未满一块的部分不会被统计，
+ *     所以splice隧道的流量是偏小的近似值，每个方向最多少算一块。splice的部分同时单独计入splicedCounter，
+ *     用于判断流量统计中近似部分的占比。对端关闭之后读取到用户态的剩余数据由{@link RelayHandler}精确统计</li>
+ * </ul>
+ */
+public class SpliceRelayHandler extends ChannelInboundHandlerAdapter {
+    private static final int TCP_ESTABLISHED = 1;
+    private static final int SPLICE_CHUNK = 256 * 1024;
+    private static final int TAIL_READ_SIZE = 16 * 1024;
+
+    private final EpollSocketChannel from;
+    private final EpollSocketChannel to;
+    private final String TAG;
+    private final Recorder recorder;
+    private final LongConsumer trafficCounter;
+    private final LongConsumer splicedCounter;
+    private final EpollTcpInfo tcpInfo = new EpollTcpInfo();
+
+    /**
+     * 正在读取剩余数据，读取过程中会触发pipeline的readComplete，需要避免重入
+     */
+    private boolean draining = false;
+    /**
+     * 已经读到EOF，等待to写完之后关闭
+     */
+    private boolean inputEof = false;
+
+    private SpliceRelayHandler(EpollSocketChannel from, EpollSocketChannel to, String tag,
+                               Recorder recorder, LongConsumer trafficCounter, LongConsumer splicedCounter) {
+        this.from = from;
+        this.to = to;
+        this.TAG = tag;
+        this.recorder = recorder;
+        this.trafficCounter = trafficCounter;
+        this.splicedCounter = splicedCounter;
+    }
+
+    public static boolean canSplice(Channel inboundChannel, Channel upstreamChannel) {
+        return NettyThreadPools.useSplice
+                && inboundChannel instanceof EpollSocketChannel
+                && upstreamChannel instanceof EpollSocketChannel
+                && inboundChannel.eventLoop() == upstreamChannel.eventLoop();
+    }
+
+    /**
+     * 在from上安装splice，from读到的数据直接搬运到to。调用前需要通过{@link #canSplice(Channel, Channel)}检查
+     *
+     * @param trafficCounter 流量统计，用户态转发的数据和splice完成的块都计入这里
+     * @param splicedCounter 只统计splice完成的块
+     */
+    public static void setup(Channel from, Channel to, String tag, Recorder recorder,
+                             LongConsumer trafficCounter, LongConsumer splicedCounter) {
+        // 在splice生效之前，可能已经有数据被读取到了用户态（如协议探测阶段的残留数据），他们仍然通过RelayHandler转发
+        from.pipeline().addLast(new RelayHandler(to, tag, recorder, trafficCounter));
+        SpliceRelayHandler spliceRelayHandler = new SpliceRelayHandler(
+                (EpollSocketChannel) from, (EpollSocketChannel) to, tag, recorder, trafficCounter, splicedCounter);
+        from.pipeline().addLast(spliceRelayHandler);
+        spliceRelayHandler.spliceNextChunk();
+    }
+
+    private void spliceNextChunk() {
+        from.spliceTo(to, SPLICE_CHUNK).addListener(future -> {
+            if (!future.isSuccess()) {
+                if (from.isActive()) {
+                    recorder.recordEvent(() -> TAG + ": splice failed", future.cause());
+                    from.close();
+                }
+                return;
+            }
+            trafficCounter.accept(SPLICE_CHUNK);
+            splicedCounter.accept(SPLICE_CHUNK);
+            spliceNextChunk();
+        });
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        EpollSocketChannel channel = (EpollSocketChannel) ctx.channel();
+        if (inputEof) {
+            // splice完成一块数据之后会恢复autoRead，EOF之后不再需要读事件，否则LT模式下会空转
+            channel.config().setAutoRead(false);
+        } else if (!draining && channel.isActive() && channel.tcpInfo(tcpInfo).state() != TCP_ESTABLISHED) {
+            drainTail(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * 对端已经发送FIN，不会再有新的数据，socket中剩余的数据直接读取到用户态，从pipeline头部重新进入，由{@link RelayHandler}转发。
+     * 已经splice的数据以SpliceOutTask的形式排在to的写缓冲中，用户态的数据写在它们之后，顺序不会乱。
+     * 剩余数据的量不超过socket接收缓冲区，这里不做流控
+     */
+    private void drainTail(ChannelHandlerContext ctx) {
+        draining = true;
+        try {
+            while (true) {
+                ByteBuf buf = ctx.alloc().directBuffer(TAIL_READ_SIZE);
+                int read;
+                try {
+                    read = readTail(buf);
+                } catch (IOException e) {
+                    buf.release();
+                    recorder.recordEvent(() -> TAG + ": read tail failed", e);
+                    ctx.close();
+                    return;
+                }
+                if (read <= 0) {
+                    buf.release();
+                    if (read < 0) {
+                        onInputEof(ctx);
+                    }
+                    // read == 0：数据还没有全部到达，等待下一次readComplete
+                    break;
+                }
+                buf.writerIndex(buf.writerIndex() + read);
+                ctx.pipeline().fireChannelRead(buf);
+            }
+            ctx.pipeline().fireChannelReadComplete();
+        } finally {
+            draining = false;
+        }
+    }
+
+    /**
+     * @return 读取的字节数，EOF时返回-1，没有数据时返回0
+     */
+    private int readTail(ByteBuf buf) throws IOException {
+        int writerIndex = buf.writerIndex();
+        if (buf.hasMemoryAddress()) {
+            return from.fd().readAddress(buf.memoryAddress(), writerIndex, buf.capacity());
+        }
+        ByteBuffer nioBuffer = buf.internalNioBuffer(writerIndex, buf.writableBytes());
+        return from.fd().read(nioBuffer, nioBuffer.position(), nioBuffer.limit());
+    }
+
+    private void onInputEof(ChannelHandlerContext ctx) {
+        inputEof = true;
+        recorder.recordEvent(() -> TAG + ": peer closed, close after pending data flushed");
+        ctx.channel().config().setAutoRead(false);
+        // splice使用的管道属于from，from关闭时管道会一起关闭，所以要等to把排在前面的数据全部写出之后再关闭
+        to.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(future -> ctx.close());
+    }
+}
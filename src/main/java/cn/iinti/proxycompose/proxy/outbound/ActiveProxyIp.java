@@ -1,25 +1,41 @@
 package cn.iinti.proxycompose.proxy.outbound;
 
+import cn.iinti.proxycompose.metrics.ConnectStage;
+import cn.iinti.proxycompose.metrics.TrafficStat;
 import cn.iinti.proxycompose.proxy.outbound.downloader.DownloadProxyIp;
+import cn.iinti.proxycompose.proxy.outbound.handshark.Protocol;
+import cn.iinti.proxycompose.resource.IpAndPort;
 import cn.iinti.proxycompose.utils.ConsistentHashUtil;
+import cn.iinti.proxycompose.utils.NettyThreadPools;
 import cn.iinti.proxycompose.utils.NettyUtil;
 import cn.iinti.proxycompose.resource.DropReason;
 import cn.iinti.proxycompose.loop.Looper;
+import cn.iinti.proxycompose.loop.TimingWheel;
 import cn.iinti.proxycompose.loop.ValueCallback;
 import cn.iinti.proxycompose.trace.Recorder;
 import com.google.common.collect.Lists;
 import com.google.common.io.BaseEncoding;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
+import io.netty.channel.EventLoop;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
 import lombok.Getter;
+import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
 
-import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 
 public class ActiveProxyIp {
 
@@ -39,15 +55,43 @@ public class ActiveProxyIp {
     @Getter
     private volatile ActiveStatus activeStatus;
 
+    /**
+     * 经过本出口ip的流量统计
+     */
+    @Getter
+    private final TrafficStat trafficStat;
+
+    @Getter
+    private final IpQuality quality = new IpQuality();
+
+    /**
+     * 在哈希环上展开的虚拟节点数，由质量评分决定，只在ip池线程上读写
+     */
+    int ringWeight = IpPool.IP_VIRTUAL_NODES;
 
+
+    /**
+     * 正在被用户使用的上游连接，用于有界负载分配
+     */
     private final Set<Channel> usedChannels = ConcurrentHashMap.newKeySet();
 
     private final CacheHandle cachedHandle = new CacheHandle();
 
+    /**
+     * http正向代理模式下，响应结束之后可以继续复用的上游连接（已经完成握手），key见{@link #keepAliveKey(Protocol, IpAndPort)}
+     */
+    private final Map<String, Deque<Channel>> keepAliveChannels = new ConcurrentHashMap<>();
+
     private final Set<Long> usedHash = new HashSet<>();
 
 
     private Runnable destroyFun;
+    private TimingWheel.Timeout destroyTimeout;
+    /**
+     * ip存活时间到期的下线任务，ip提前下线时取消
+     */
+    @Setter
+    private TimingWheel.Timeout expireTimeout;
 
     public ActiveProxyIp(IpPool ipPool, DownloadProxyIp downloadProxyIp, long seq) {
         this.ipPool = ipPool;
@@ -57,6 +101,7 @@ public class ActiveProxyIp {
         this.recorder = ipPool.getRuntimeIpSource().getRecorder();
         this.activeStatus = ActiveStatus.ONLINE;
         this.murHash = ConsistentHashUtil.murHash(downloadProxyIp.getResourceId());
+        this.trafficStat = new TrafficStat(ipPool.getRuntimeIpSource().getTrafficStat());
     }
 
     public void destroy(DropReason dropReason) {
@@ -70,6 +115,10 @@ public class ActiveProxyIp {
             if (activeStatus == ActiveStatus.ONLINE) {
                 activeStatus = ActiveStatus.OFFLINE;
             }
+            if (expireTimeout != null) {
+                expireTimeout.cancel();
+                expireTimeout = null;
+            }
 
             destroyFun = () -> {
                 workThread.checkLooper();
@@ -78,7 +127,12 @@ public class ActiveProxyIp {
                 }
                 activeStatus = ActiveStatus.DESTROY;
                 destroyFun = null;
+                if (destroyTimeout != null) {
+                    destroyTimeout.cancel();
+                    destroyTimeout = null;
+                }
                 cachedHandle.destroy();
+                destroyKeepAlive();
             };
             if (usedHash.isEmpty() || dropReason == DropReason.IP_SERVER_UNAVAILABLE) {
                 // 如果当前没有用户占用本ip，则立即销毁
@@ -87,61 +141,151 @@ public class ActiveProxyIp {
             }
             // 否则给一个60s的延时时间，给业务继续使用
             // 请注意整个60s的延时不是确定的，如果业务提前判断全部离开本ip，则清理动作可以提前
-            workThread.postDelay(destroyFun, 60_000);
+            destroyTimeout = workThread.postDelay(destroyFun, 60_000);
         });
 
 
     }
 
 
-    public void borrowConnect(Recorder recorder, String tag,
+    /**
+     * @param eventLoop 上游连接需要注册的eventLoop，为null时不限制
+     */
+    public void borrowConnect(Recorder recorder, String tag, EventLoop eventLoop,
                               ActivityProxyIpBindObserver observer,
                               ValueCallback<Channel> valueCallback) {
         observer.onBind(this);
+        // 借出成功的连接计入本ip的负载，连接关闭或者归还缓存时扣除
+        ValueCallback<Channel> borrowCallback = value -> {
+            if (value.isSuccess()) {
+                markUsed(value.v);
+            }
+            valueCallback.onReceiveValue(value);
+        };
         workThread.execute(() -> {
             cachedHandle.onConnBorrowed();
 
             // 尝试使用缓存的ip资源
-            while (true) {
-                Channel one = cachedHandle.cachedChannels.poll();
-                if (one == null) {
-                    break;
-                }
-                if (one.isActive()) {
-                    recorder.recordEvent(() -> tag + "conn cache pool hinted");
-                    ValueCallback.success(valueCallback, one);
+            Channel one = cachedHandle.pollCachedChannel(eventLoop);
+            // 借出之后预热连接可能低于预测的需求，立即批量补充，不用等待定时任务
+            cachedHandle.refill();
+            if (one != null) {
+                recorder.recordEvent(() -> tag + "conn cache pool hinted");
+                if (eventLoop == null || one.eventLoop() == eventLoop) {
+                    onCacheLookup(true);
+                    ValueCallback.success(borrowCallback, one);
                     return;
                 }
+                // 迁移成功之后才算命中，迁移失败时仍然需要立即创建连接，记为未命中
+                recorder.recordEvent(() -> tag + "migrate cached conn to user eventLoop");
+                OutboundOperator.migrateToEventLoop(one, eventLoop, value -> {
+                    workThread.execute(() -> onCacheLookup(value.isSuccess()));
+                    if (value.isSuccess()) {
+                        ValueCallback.success(borrowCallback, value.v);
+                        return;
+                    }
+                    recorder.recordEvent(() -> tag + "migrate cached conn failed, create connection immediately", value.e);
+                    createUpstreamConnection(eventLoop, borrowCallback, recorder);
+                });
+                return;
             }
+            onCacheLookup(false);
             recorder.recordEvent(() -> tag + "begin to create connection immediately");
 
-            createUpstreamConnection(valueCallback, recorder);
-
+            createUpstreamConnection(eventLoop, borrowCallback, recorder);
         });
 
     }
 
+    /**
+     * 统计连接缓存命中率，只能在workThread调用
+     */
+    private void onCacheLookup(boolean hit) {
+        cachedHandle.onLookup(hit);
+        if (hit) {
+            ipPool.getRuntimeIpSource().getMetrics().getConnCacheHit().increment();
+        } else {
+            ipPool.getRuntimeIpSource().getMetrics().getConnCacheMiss().increment();
+        }
+    }
+
     public boolean isIdle() {
         return usedChannels.isEmpty();
     }
 
+    /**
+     * @return 当前正在被用户使用的连接数
+     */
+    public int load() {
+        return usedChannels.size();
+    }
+
+    private void markUsed(Channel channel) {
+        if (usedChannels.add(channel)) {
+            ipPool.onIpLoadChanged(1);
+        }
+    }
+
+    private void markUnused(Channel channel) {
+        if (usedChannels.remove(channel)) {
+            ipPool.onIpLoadChanged(-1);
+        }
+    }
+
+    private static final int TCP_ESTABLISHED = 1;
+
+    /**
+     * 检查连接健康的线程（ip池线程、借出keep-alive连接的eventLoop）各自复用一个实例，避免每次检查都分配对象
+     */
+    private static final FastThreadLocal<EpollTcpInfo> TCP_INFO = new FastThreadLocal<EpollTcpInfo>() {
+        @Override
+        protected EpollTcpInfo initialValue() {
+            return new EpollTcpInfo();
+        }
+    };
+
+    /**
+     * 代理服务器可能已经关闭了空闲连接，但是FIN还没有被读取处理，此时channel仍然是active的，
+     * epoll下可以直接通过tcp状态判断。可以在任意线程调用，连接在检查过程中被关闭时视为不健康
+     */
+    private static boolean isHealthy(Channel channel) {
+        if (!channel.isActive()) {
+            return false;
+        }
+        if (!(channel instanceof EpollSocketChannel)) {
+            return true;
+        }
+        try {
+            return ((EpollSocketChannel) channel).tcpInfo(TCP_INFO.get()).state() == TCP_ESTABLISHED;
+        } catch (ChannelException e) {
+            return false;
+        }
+    }
+
     private static final AttributeKey<ActiveProxyIp> ACTIVITY_PROXY_IP_KEY = AttributeKey.newInstance("ACTIVITY_PROXY_IP");
+    private static final AttributeKey<TimingWheel.Timeout> IDLE_CLEAN_KEY = AttributeKey.newInstance("IDLE_CLEAN");
 
-    private void createUpstreamConnection(ValueCallback<Channel> valueCallback, Recorder userRecorder) {
-        OutboundOperator.connectToServer(downloadProxyIp.getProxyHost(), downloadProxyIp.getProxyPort(), value -> {
+    private void createUpstreamConnection(EventLoop eventLoop, ValueCallback<Channel> valueCallback, Recorder userRecorder) {
+        long startNanos = System.nanoTime();
+        OutboundOperator.connectToServer(downloadProxyIp.getProxyHost(), downloadProxyIp.getProxyPort(), eventLoop, value -> {
             if (!value.isSuccess()) {
                 // 这里失败我们我们不再执行立即替换出口ip的逻辑，这是因为在并发极高的情况下
                 // 失败可能是我们自己的网络不通畅导致的，我们不能以链接失败就判定ip存在问题
+                quality.onFailure();
                 ipPool.onCreateConnectionFailed(ActiveProxyIp.this, value.e, userRecorder);
                 ValueCallback.failed(valueCallback, value.e);
                 return;
             }
 
+            long latency = System.nanoTime() - startNanos;
+            ipPool.getRuntimeIpSource().getMetrics().getStageLatencies().record(ConnectStage.TCP_CONNECT, latency);
+            cachedHandle.onConnectLatency(TimeUnit.NANOSECONDS.toMillis(latency));
+            quality.onConnect(latency);
+
             // setup meta info
             Channel channel = value.v;
             channel.attr(ACTIVITY_PROXY_IP_KEY).set(this);
-            channel.closeFuture().addListener(it -> usedChannels.remove(channel));
-            cachedHandle.scheduleCleanIdleCache(channel, ipPool.getRuntimeIpSource().getConnIdleSeconds().value);
+            channel.closeFuture().addListener(it -> markUnused(channel));
 
             ValueCallback.success(valueCallback, channel);
         });
@@ -153,9 +297,89 @@ public class ActiveProxyIp {
             channel.close();
             return;
         }
+        activeProxyIp.markUnused(channel);
         activeProxyIp.cachedHandle.restoreCache(channel);
     }
 
+    /**
+     * 上游为http代理时，握手之后的连接和请求目标无关，可以被任意目标复用；
+     * 其他协议（socks5、https connect）的隧道在握手时已经绑定了目标，只能给相同的目标复用
+     */
+    public static String keepAliveKey(Protocol protocol, IpAndPort target) {
+        if (protocol == Protocol.HTTP) {
+            return protocol.name();
+        }
+        return protocol.name() + "->" + target.getIpPort();
+    }
+
+    /**
+     * 借出一条keep-alive连接，借出的连接计入本ip的负载
+     *
+     * @return 没有可用连接时返回null
+     */
+    public Channel pollKeepAlive(String key) {
+        Deque<Channel> channels = keepAliveChannels.get(key);
+        if (channels == null) {
+            return null;
+        }
+        Channel channel;
+        while ((channel = channels.pollFirst()) != null) {
+            cancelCleanIdleKeepAlive(channel);
+            if (isHealthy(channel)) {
+                markUsed(channel);
+                return channel;
+            }
+            channel.close();
+        }
+        return null;
+    }
+
+    /**
+     * 归还一条响应已经结束的连接，空闲超过connIdleSeconds之后关闭
+     */
+    public void offerKeepAlive(String key, Channel channel) {
+        markUnused(channel);
+        if (activeStatus != ActiveStatus.ONLINE || !channel.isActive()) {
+            channel.close();
+            return;
+        }
+        Deque<Channel> channels = keepAliveChannels.computeIfAbsent(key, k -> new ConcurrentLinkedDeque<>());
+        channels.offerFirst(channel);
+        TimingWheel.Timeout timeout = workThread.postDelay(() -> {
+            channel.attr(IDLE_CLEAN_KEY).set(null);
+            if (channels.remove(channel)) {
+                channel.close();
+            }
+            if (channels.isEmpty()) {
+                keepAliveChannels.remove(key, channels);
+            }
+        }, ipPool.getRuntimeIpSource().getConnIdleSeconds().value * 1000L);
+        channel.attr(IDLE_CLEAN_KEY).set(timeout);
+        if (activeStatus == ActiveStatus.DESTROY && channels.remove(channel)) {
+            // 归还过程中ip被销毁，此时销毁任务可能已经清理过连接池了
+            cancelCleanIdleKeepAlive(channel);
+            channel.close();
+        }
+    }
+
+    private void cancelCleanIdleKeepAlive(Channel channel) {
+        TimingWheel.Timeout timeout = channel.attr(IDLE_CLEAN_KEY).getAndSet(null);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private void destroyKeepAlive() {
+        for (Deque<Channel> channels : keepAliveChannels.values()) {
+            Channel channel;
+            while ((channel = channels.pollFirst()) != null) {
+                cancelCleanIdleKeepAlive(channel);
+                channel.close();
+            }
+        }
+        keepAliveChannels.clear();
+    }
+
     public static void offlineBindingProxy(Channel channel, IpPool.OfflineLevel level, Recorder userRecorder) {
         ActiveProxyIp activeProxyIp = getBinding(channel);
         if (activeProxyIp == null) {
@@ -175,30 +399,101 @@ public class ActiveProxyIp {
         cachedHandle.doCreateCacheTask();
     }
 
+    /**
+     * 连接池，按照需求预测提前创建到代理服务器的连接：
+     * 根据Little定律，需要预热的连接数 ≈ 借用速率 × 建连耗时，两者都使用EWMA估计。
+     * 所有状态只在ip池线程上访问
+     */
     private class CacheHandle {
+        private static final double EWMA_ALPHA = 0.2;
+        private static final int MAX_WARM_SIZE = 16;
+
         private final LinkedList<Channel> cachedChannels = Lists.newLinkedList();
         /**
-         * 用户请求的平均时间间隔，代表这个ip资源处理请求的qps，但是我们使用一个高效计算方案评估这个指标<br>
-         * 这个值将会约等于最近10次请求时间间隔的平均数
+         * 用户请求的平均时间间隔（EWMA），倒数即为这个ip资源的借用速率
          */
         private double avgInterval = 1000;
 
+        /**
+         * 到代理服务器建立连接的平均耗时（EWMA），初始值取一个经验值
+         */
+        private double avgConnectLatency = 200;
+
         private long lastRequestConnection = 0;
 
-        private long lastCreateCacheConnection = 0;
+        /**
+         * 已经发起但还没有完成的预热连接数，避免批量补充时重复创建
+         */
+        private int pendingCreate = 0;
+
+        private long hitCount = 0;
+        private long missCount = 0;
+
+        /**
+         * 优先选择已经注册在目标eventLoop上的缓存连接，否则返回最新的一个，由调用方迁移到目标eventLoop。
+         * 过期或者已经半关闭的连接在这里直接关闭清理
+         */
+        private Channel pollCachedChannel(EventLoop eventLoop) {
+            Channel fallback = null;
+            Iterator<Channel> iterator = cachedChannels.iterator();
+            while (iterator.hasNext()) {
+                Channel channel = iterator.next();
+                if (!isHealthy(channel)) {
+                    iterator.remove();
+                    cancelCleanIdleCache(channel);
+                    channel.close();
+                    continue;
+                }
+                if (eventLoop == null || channel.eventLoop() == eventLoop) {
+                    iterator.remove();
+                    cancelCleanIdleCache(channel);
+                    return channel;
+                }
+                if (fallback == null) {
+                    fallback = channel;
+                }
+            }
+            if (fallback != null) {
+                cachedChannels.remove(fallback);
+                cancelCleanIdleCache(fallback);
+            }
+            return fallback;
+        }
+
+        /**
+         * 命中与否由调用方判定：需要迁移eventLoop的缓存连接，迁移成功之后才算命中
+         */
+        private void onLookup(boolean hit) {
+            if (hit) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+        }
 
         private void destroy() {
+            for (Channel channel : cachedChannels) {
+                cancelCleanIdleCache(channel);
+            }
             NettyUtil.closeAll(cachedChannels);
             cachedChannels.clear();
         }
 
+        /**
+         * 连接进入缓存，同时开始计算空闲时间
+         */
+        private void addToCache(Channel channel) {
+            cachedChannels.addFirst(channel);
+            scheduleCleanIdleCache(channel, ipPool.getRuntimeIpSource().getConnIdleSeconds().value);
+        }
+
         public void restoreCache(Channel channel) {
             workThread.execute(() -> {
                 if (activeStatus == ActiveStatus.DESTROY) {
                     channel.close();
                     return;
                 }
-                cachedChannels.addFirst(channel);
+                addToCache(channel);
             });
         }
 
@@ -211,47 +506,96 @@ public class ActiveProxyIp {
 
             long thisInterval = now - lastRequestConnection;
             lastRequestConnection = now;
-            avgInterval = (thisInterval * 9 + avgInterval) / 10;
+            avgInterval = EWMA_ALPHA * thisInterval + (1 - EWMA_ALPHA) * avgInterval;
         }
 
-        void scheduleCleanIdleCache(Channel cacheChannel, Integer idleSeconds) {
-            // 为了避免gc hold，所有延时任务里面不允许直接访问channel对象，而使用WeakReference
-            WeakReference<Channel> channelRef = new WeakReference<>(cacheChannel);
-            workThread.postDelay(() -> {
-                Channel gcChannel = channelRef.get();
-                if (gcChannel == null || !gcChannel.isActive()) {
-                    return;
-                }
-                for (Channel ch : cachedChannels) {
-                    if (ch.equals(gcChannel)) {
-                        gcChannel.close();
-                        return;
-                    }
+        void onConnectLatency(long latencyMillis) {
+            workThread.execute(() ->
+                    avgConnectLatency = EWMA_ALPHA * latencyMillis + (1 - EWMA_ALPHA) * avgConnectLatency);
+        }
+
+        /**
+         * 需要保持的预热连接数
+         */
+        private int targetSize() {
+            if (lastRequestConnection == 0L) {
+                // 还没有请求，保持一条连接
+                return 1;
+            }
+            // 长时间没有请求时，平均间隔应该随之变大，否则空闲ip会一直按照历史速率预热
+            double interval = Math.max(avgInterval, System.currentTimeMillis() - lastRequestConnection);
+            interval = Math.max(interval, 1);
+            Integer idleSeconds = ipPool.getRuntimeIpSource().getConnIdleSeconds().value;
+            if (interval > idleSeconds * 1000L) {
+                // 预热的连接在被使用之前就会因为空闲被清理
+                return 0;
+            }
+            int target = (int) Math.ceil(avgConnectLatency / interval) + 1;
+            return Math.min(target, MAX_WARM_SIZE);
+        }
+
+        /**
+         * 空闲清理任务在连接被借出时取消，所以延时任务可以直接持有channel，不会导致gc hold
+         */
+        private void scheduleCleanIdleCache(Channel cacheChannel, Integer idleSeconds) {
+            TimingWheel.Timeout timeout = workThread.postDelay(() -> {
+                cacheChannel.attr(IDLE_CLEAN_KEY).set(null);
+                if (cachedChannels.remove(cacheChannel)) {
+                    cacheChannel.close();
                 }
-            }, idleSeconds * 1000);
+            }, idleSeconds * 1000L);
+            cacheChannel.attr(IDLE_CLEAN_KEY).set(timeout);
         }
 
+        private void cancelCleanIdleCache(Channel channel) {
+            TimingWheel.Timeout timeout = channel.attr(IDLE_CLEAN_KEY).getAndSet(null);
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
 
+        /**
+         * 定时任务触发，同时汇报连接池命中情况
+         */
         public void doCreateCacheTask() {
-            if (cachedChannels.size() > 3) {
-                recorder.recordEvent(() -> "skip make conn cache because of cache overflow:" + cachedChannels.size());
-                //理论上真实流量一半的速率，cachedChannels.size()应该为0或者1
-                return;
+            long total = hitCount + missCount;
+            if (total > 0) {
+                recorder.recordEvent(() -> "conn cache hit: " + hitCount + " miss: " + missCount
+                        + " ratio: " + (hitCount * 100 / total) + "% target: " + targetSize()
+                        + " cached: " + cachedChannels.size());
             }
+            refill();
+        }
 
-            long now = System.currentTimeMillis();
-            if (lastCreateCacheConnection != 0 && (now - lastRequestConnection) < avgInterval / 2) {
-                // 流量为真实速率的一半
+        /**
+         * 批量补充预热连接到目标数量，借用连接和定时任务都会触发
+         */
+        public void refill() {
+            if (activeStatus != ActiveStatus.ONLINE) {
+                return;
+            }
+            int deficit = targetSize() - cachedChannels.size() - pendingCreate;
+            if (deficit <= 0) {
                 return;
             }
-            lastCreateCacheConnection = now;
 
-            recorder.recordEvent(() -> "fire conn cache make task");
-            createUpstreamConnection(value -> {
-                if (value.isSuccess()) {
-                    workThread.execute(() -> cachedChannels.addFirst(value.v));
-                }
-            }, Recorder.nop);
+            recorder.recordEvent(() -> "fire conn cache make task, count: " + deficit);
+            for (int i = 0; i < deficit; i++) {
+                pendingCreate++;
+                // 开启upstreamColocate时，缓存连接直接分散创建在用户连接的eventLoop上，尽量减少借出时的迁移
+                EventLoop eventLoop = NettyThreadPools.colocateUpstream ? NettyThreadPools.proxyServerWorkerGroup.next() : null;
+                createUpstreamConnection(eventLoop, value -> workThread.execute(() -> {
+                    pendingCreate--;
+                    if (!value.isSuccess()) {
+                        return;
+                    }
+                    if (activeStatus == ActiveStatus.DESTROY) {
+                        value.v.close();
+                        return;
+                    }
+                    addToCache(value.v);
+                }), Recorder.nop);
+            }
         }
 
     }
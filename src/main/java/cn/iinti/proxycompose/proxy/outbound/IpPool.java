@@ -1,17 +1,27 @@
 package cn.iinti.proxycompose.proxy.outbound;
 
+import cn.iinti.proxycompose.metrics.ConnectStage;
+import cn.iinti.proxycompose.metrics.TrafficStat;
 import cn.iinti.proxycompose.resource.DropReason;
 import cn.iinti.proxycompose.loop.Looper;
 import cn.iinti.proxycompose.loop.ValueCallback;
 import cn.iinti.proxycompose.proxy.outbound.downloader.DownloadProxyIp;
 import cn.iinti.proxycompose.proxy.RuntimeIpSource;
+import cn.iinti.proxycompose.utils.ConsistentHashRing;
 import cn.iinti.proxycompose.utils.ConsistentHashUtil;
 import cn.iinti.proxycompose.trace.Recorder;
 import com.alibaba.fastjson.JSONObject;
+import io.netty.channel.ConnectTimeoutException;
 import lombok.Getter;
 
-import java.lang.ref.WeakReference;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
@@ -22,9 +32,32 @@ public class IpPool {
     private final Recorder recorder;
 
     /**
-     * 一致性哈希ip池,提供在池中随机（固定session）的能力
+     * 每个出口ip在一致性哈希环上展开的虚拟节点数，让session在ip之间分布得更均匀。
+     * 这是质量评分处于平均水平的ip的节点数，实际节点数随评分在最小值和最大值之间调整
      */
-    private final TreeMap<Long, ActiveProxyIp> poolWithMurHash = new TreeMap<>();
+    static final int IP_VIRTUAL_NODES = 16;
+    private static final int MIN_VIRTUAL_NODES = 2;
+    private static final int MAX_VIRTUAL_NODES = IP_VIRTUAL_NODES * 3;
+    /**
+     * 评分的正常抖动会让权重在相邻值之间来回变化，差值不超过这个值时不调整，避免频繁重建哈希环
+     */
+    private static final int WEIGHT_TOLERANCE = 1;
+
+    /**
+     * 在线的ip池，key为ip的murHash，只在ip池线程上读写
+     */
+    private final Map<Long, ActiveProxyIp> poolWithMurHash = new HashMap<>();
+
+    /**
+     * 一致性哈希ip池,提供在池中随机（固定session）的能力<br>
+     * 是poolWithMurHash的只读快照，ip上下线时在ip池线程上重建（写时复制），分配ip时在任意线程无锁读取
+     */
+    private volatile ConsistentHashRing<ActiveProxyIp> allocateRing = ConsistentHashRing.empty();
+
+    /**
+     * 池中所有ip正在被使用的连接数之和，用于有界负载分配
+     */
+    private final AtomicInteger totalLoad = new AtomicInteger(0);
 
 
     /**
@@ -55,28 +88,43 @@ public class IpPool {
 
     public void allocateIp(long hash, Recorder userRecorder,
                            ValueCallback<ActiveProxyIp> valueCallback) {
-        workThread.execute(() -> {
-            if (poolWithMurHash.isEmpty()) {
-                ValueCallback.failed(valueCallback, "no ip in pool");
-                return;
-            }
-            runtimeIpSource.recordComposedEvent(userRecorder, () -> "allocateOutbound request" +
-                    " hash: " + hash +
-                    " pool size:" + poolWithMurHash.size()
-            );
+        long startNanos = System.nanoTime();
+        // 分配只读取快照，直接在调用线程上完成，不再切换到ip池线程
+        ConsistentHashRing<ActiveProxyIp> ring = allocateRing;
+        if (ring.isEmpty()) {
+            ValueCallback.failed(valueCallback, "no ip in pool");
+            return;
+        }
+        runtimeIpSource.recordComposedEvent(userRecorder, () -> "allocateOutbound request" +
+                " hash: " + hash +
+                " pool size:" + ring.nodeCount()
+        );
+
+        ActiveProxyIp activeProxyIp;
 
-            ActiveProxyIp activeProxyIp;
+        int boundedLoadPercent = runtimeIpSource.getBoundedLoadPercent().value;
+        if (boundedLoadPercent > 0) {
+            // 有界负载：每个ip的连接数不超过 (1+ε)·平均值，超过则沿哈希环顺延，未超载时和默认策略的结果一致
+            int capacity = (int) Math.ceil((totalLoad.get() + 1) * (100 + boundedLoadPercent) / (100.0 * ring.nodeCount()));
+            runtimeIpSource.recordComposedEvent(userRecorder, () -> "bounded load plan, capacity: " + capacity);
+            activeProxyIp = ring.fetch(hash, ip -> ip.getActiveStatus() == ActiveProxyIp.ActiveStatus.ONLINE
+                    && ip.load() < capacity);
+        } else {
+            activeProxyIp = null;
+        }
 
+        if (activeProxyIp == null) {
             runtimeIpSource.recordComposedEvent(userRecorder, () -> "default session hash plan");
-            // 默认策略，在当前ip池中进行一致性哈希绑定
-            activeProxyIp = ConsistentHashUtil.fetchConsistentRing(poolWithMurHash, hash);
+            // 默认策略，在当前ip池中进行一致性哈希绑定，快照可能稍有滞后，所以跳过已经下线的ip
+            activeProxyIp = ring.fetch(hash, ip -> ip.getActiveStatus() == ActiveProxyIp.ActiveStatus.ONLINE);
+        }
 
-            if (activeProxyIp == null) {
-                ValueCallback.failed(valueCallback, "no suitable ip in the pool");
-            } else {
-                ValueCallback.success(valueCallback, activeProxyIp);
-            }
-        });
+        if (activeProxyIp == null) {
+            ValueCallback.failed(valueCallback, "no suitable ip in the pool");
+        } else {
+            runtimeIpSource.getMetrics().getStageLatencies().recordSince(ConnectStage.IP_ALLOCATE, startNanos);
+            ValueCallback.success(valueCallback, activeProxyIp);
+        }
     }
 
 
@@ -88,18 +136,38 @@ public class IpPool {
         runtimeIpSource.recordComposedMosaicEvent(userRecorder, cause::getMessage);
 
 
-        String message = cause.getMessage();
+        // 优先根据异常类型判断；nio和epoll下连接拒绝、系统层面的连接超时都是普通的ConnectException（epoll下为AnnotatedConnectException），
+        // 拿不到errno，只有这一种情况再结合异常消息区分。消息会随系统语言变化，中英文关键字都无法识别时按照连接失败处理，不会直接下线
         OfflineLevel offlineLevel;
         String offlineReason = "未知原因";
-        if (message.contains("Connection refused") || message.contains("拒绝连接")) {
-            // 明确这个ip资源无法使用了,强制下线
-            offlineLevel = OfflineLevel.MUST;
-            offlineReason = "拒绝连接";
-        } else if (message.contains("connection timed out") || message.contains("连接超时")) {
+        if (hasCause(cause, ConnectTimeoutException.class) || hasCause(cause, SocketTimeoutException.class)) {
             // 连接超时，可能是防火墙拦截，也可能是对方服务器负载高无法处理我们的请求
             // 此时根据ip池的容量大小决定是否要下线
             offlineLevel = OfflineLevel.STRONG;
             offlineReason = "连接超时";
+        } else if (hasCause(cause, PortUnreachableException.class)) {
+            // 对方主机明确告知端口没有服务，和拒绝连接一样强制下线
+            offlineLevel = OfflineLevel.MUST;
+            offlineReason = "端口不可达";
+        } else if (hasCause(cause, NoRouteToHostException.class) || hasCause(cause, UnknownHostException.class)) {
+            // 网络不可达、dns解析失败，可能是我们自己的网络问题，不能因此下线ip，ip确实有问题时由质量评估升级下线强度
+            offlineLevel = OfflineLevel.SUGGEST;
+            offlineReason = "网络不可达";
+        } else if (hasCause(cause, ConnectException.class)) {
+            if (messageContains(cause, CONNECTION_REFUSED_KEYWORDS)) {
+                // 明确这个ip资源无法使用了,强制下线
+                offlineLevel = OfflineLevel.MUST;
+                offlineReason = "拒绝连接";
+            } else if (messageContains(cause, CONNECT_TIMEOUT_KEYWORDS)) {
+                offlineLevel = OfflineLevel.STRONG;
+                offlineReason = "连接超时";
+            } else {
+                offlineLevel = OfflineLevel.STRONG;
+                offlineReason = "连接失败";
+            }
+        } else if (hasCause(cause, SocketException.class)) {
+            offlineLevel = OfflineLevel.SUGGEST;
+            offlineReason = "网络不可达";
         } else {
             // 其他失败原因，在ip池非常富裕的条件下执行下线
             offlineLevel = OfflineLevel.SUGGEST;
@@ -112,12 +180,55 @@ public class IpPool {
         offlineProxy(activeProxyIp, offlineLevel, userRecorder);
     }
 
+    /**
+     * 系统的strerror消息，分别对应ECONNREFUSED和ETIMEDOUT，包括英文和中文系统语言下的描述
+     */
+    private static final String[] CONNECTION_REFUSED_KEYWORDS = {"refused", "拒绝连接"};
+    private static final String[] CONNECT_TIMEOUT_KEYWORDS = {"timed out", "连接超时"};
+
+    private static boolean hasCause(Throwable cause, Class<? extends Throwable> type) {
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (type.isInstance(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean messageContains(Throwable cause, String[] keywords) {
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            String message = t.getMessage();
+            if (message == null) {
+                continue;
+            }
+            message = message.toLowerCase(Locale.ROOT);
+            for (String keyword : keywords) {
+                if (message.contains(keyword)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public boolean poolEmpty() {
-        return poolWithMurHash.isEmpty();
+        return allocateRing.isEmpty();
+    }
+
+    void onIpLoadChanged(int delta) {
+        totalLoad.addAndGet(delta);
+    }
+
+    public int poolSize() {
+        return allocateRing.nodeCount();
+    }
+
+    public int cachedSize() {
+        return cachedProxies.size();
     }
 
     public double healthScore() {
-        return (poolWithMurHash.size() + cachedProxies.size()) * 100.0
+        return (allocateRing.nodeCount() + cachedProxies.size()) * 100.0
                 / runtimeIpSource.getPoolSize().value;
     }
 
@@ -134,7 +245,8 @@ public class IpPool {
         }
     }
 
-    public void offlineProxy(ActiveProxyIp activeProxyIp, OfflineLevel level, Recorder userRecorder) {
+    public void offlineProxy(ActiveProxyIp activeProxyIp, OfflineLevel requestLevel, Recorder userRecorder) {
+        OfflineLevel level = adjustByQuality(activeProxyIp, requestLevel, userRecorder);
 
         runtimeIpSource.recordComposedEvent(userRecorder, () -> "offline proxy by pool status: " + level.name);
         runtimeIpSource.recordComposedMosaicEvent(userRecorder, () -> " proxy: " + activeProxyIp.getDownloadProxyIp().getResourceId());
@@ -163,6 +275,25 @@ public class IpPool {
         runtimeIpSource.recordComposedEvent(userRecorder, () -> "do not offline proxy finally");
     }
 
+    /**
+     * 单次失败的判定结合ip最近的成功率：一直表现良好的ip偶发超时不轻易下线，最近大部分失败的ip加强下线
+     */
+    private OfflineLevel adjustByQuality(ActiveProxyIp activeProxyIp, OfflineLevel level, Recorder userRecorder) {
+        IpQuality quality = activeProxyIp.getQuality();
+        OfflineLevel adjusted = level;
+        if (quality.isPoor()) {
+            adjusted = level == OfflineLevel.SUGGEST ? OfflineLevel.STRONG : OfflineLevel.MUST;
+        } else if (level == OfflineLevel.STRONG && quality.isGood()) {
+            adjusted = OfflineLevel.SUGGEST;
+        }
+        if (adjusted != level) {
+            OfflineLevel finalAdjusted = adjusted;
+            runtimeIpSource.recordComposedEvent(userRecorder, () -> "adjust offline level by ip quality: "
+                    + level.name + " -> " + finalAdjusted.name + " quality: " + quality);
+        }
+        return adjusted;
+    }
+
     private void offlineProxy(ActiveProxyIp activeProxyIp, DropReason dropReason, Recorder userRecorder) {
         if (activeProxyIp.getActiveStatus() != ActiveProxyIp.ActiveStatus.ONLINE) {
             return;
@@ -176,6 +307,7 @@ public class IpPool {
 
             removeIfEq(activeProxyIp, ActiveProxyIp::getSeq, poolWithCreateSequence);
             removeIfEq(activeProxyIp, ActiveProxyIp::getMurHash, poolWithMurHash);
+            rebuildAllocateRing();
 //            removeIfEq(activeProxyIp, ActiveProxyIp::getGeoHashCode, poolWithGeoLocation);
 //            removeIfEq(activeProxyIp, ActiveProxyIp::getAdminCode, poolWithAdmin);
 
@@ -295,17 +427,79 @@ public class IpPool {
         // register in multiple function ip pool
         poolWithMurHash.put(activeProxyIp.getMurHash(), activeProxyIp);
         poolWithCreateSequence.put(activeProxyIp.getSeq(), activeProxyIp);
+        rebuildAllocateRing();
 
         // 该ip配置了有效时间，且代理系统无法感知ip失效，
-        // 故手动完成ip资源的下线
-        WeakReference<ActiveProxyIp> weakReference = new WeakReference<>(activeProxyIp);
-        workThread.postDelay(() -> {
-            // 可能已经提前下线了，所以这里用软引用
-            ActiveProxyIp proxyNotGc = weakReference.get();
-            if (proxyNotGc != null) {
-                offlineProxy(proxyNotGc, DropReason.IP_ALIVE_TIME_REACHED, Recorder.nop);
+        // 故手动完成ip资源的下线。ip提前下线时会取消这个任务，所以这里可以直接持有ip对象
+        activeProxyIp.setExpireTimeout(workThread.postDelay(() ->
+                offlineProxy(activeProxyIp, DropReason.IP_ALIVE_TIME_REACHED, Recorder.nop), lifeTime));
+    }
+
+    /**
+     * 池中每个出口ip的流量快照，key为资源id
+     */
+    public void trafficSnapshot(ValueCallback<Map<String, TrafficStat.Snapshot>> valueCallback) {
+        workThread.execute(() -> {
+            Map<String, TrafficStat.Snapshot> ret = new HashMap<>();
+            for (ActiveProxyIp activeProxyIp : poolWithMurHash.values()) {
+                ret.put(activeProxyIp.getDownloadProxyIp().getResourceId(), activeProxyIp.getTrafficStat().snapshot());
+            }
+            ValueCallback.success(valueCallback, ret);
+        });
+    }
+
+    private void rebuildAllocateRing() {
+        ConsistentHashRing.Builder<ActiveProxyIp> builder = ConsistentHashRing.builder();
+        for (ActiveProxyIp activeProxyIp : poolWithMurHash.values()) {
+            builder.add(activeProxyIp, activeProxyIp.getDownloadProxyIp().getResourceId(), activeProxyIp.ringWeight);
+        }
+        allocateRing = builder.build();
+    }
+
+    /**
+     * 根据ip质量评分调整每个ip在哈希环上的虚拟节点数，评分高（快且稳定）的ip分到更多的session。<br>
+     * 虚拟节点的hash和节点序号一一对应，增减节点只影响变化的那部分区间，大部分session的映射保持不变。
+     * 没有延时样本的ip使用平均权重，只有权重变化时才重建哈希环
+     */
+    public void refreshQualityWeights() {
+        workThread.checkLooper();
+        double totalScore = 0;
+        int scored = 0;
+        for (ActiveProxyIp activeProxyIp : poolWithMurHash.values()) {
+            if (activeProxyIp.getQuality().hasLatency()) {
+                totalScore += activeProxyIp.getQuality().score();
+                scored++;
+            }
+        }
+        if (scored == 0 || totalScore <= 0) {
+            return;
+        }
+        double avgScore = totalScore / scored;
+        boolean changed = false;
+        for (ActiveProxyIp activeProxyIp : poolWithMurHash.values()) {
+            IpQuality quality = activeProxyIp.getQuality();
+            int weight = IP_VIRTUAL_NODES;
+            if (quality.hasLatency()) {
+                weight = (int) Math.round(IP_VIRTUAL_NODES * quality.score() / avgScore);
+                weight = Math.max(MIN_VIRTUAL_NODES, Math.min(MAX_VIRTUAL_NODES, weight));
             }
-        }, lifeTime);
+            if (Math.abs(weight - activeProxyIp.ringWeight) > WEIGHT_TOLERANCE) {
+                activeProxyIp.ringWeight = weight;
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        rebuildAllocateRing();
+        // 日志在recorder线程上格式化，所以这里先在ip池线程上生成
+        StringBuilder sb = new StringBuilder("ip quality weights changed, rebuild allocate ring:");
+        for (ActiveProxyIp activeProxyIp : poolWithMurHash.values()) {
+            sb.append("\n").append(activeProxyIp.getDownloadProxyIp().getResourceId())
+                    .append(" weight:").append(activeProxyIp.ringWeight)
+                    .append(" ").append(activeProxyIp.getQuality());
+        }
+        recorder.recordEvent(sb.toString());
     }
 
     public void makeCache() {
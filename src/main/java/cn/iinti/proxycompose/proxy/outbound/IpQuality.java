@@ -0,0 +1,98 @@
+package cn.iinti.proxycompose.proxy.outbound;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 出口ip的质量评估，使用指数加权移动平均（EWMA）跟踪连接耗时、握手耗时和成功率，越新的样本权重越大。<br>
+ * 由多个eventLoop并发更新，这里不加锁，并发时可能丢失个别样本，对平均值的影响可以忽略
+ */
+public class IpQuality {
+    /**
+     * 新样本的权重，约等于最近10个样本决定当前的值
+     */
+    private static final double ALPHA = 0.2;
+    /**
+     * 计算评分时给耗时加上的基数（毫秒），避免几毫秒的差异在低延时的ip之间被放大
+     */
+    private static final double LATENCY_BASE_MILLIS = 50;
+    /**
+     * 成功率需要积累一定样本之后才参与下线决策
+     */
+    private static final int MIN_RATIO_SAMPLES = 5;
+
+    private volatile double connectMillis = -1;
+    private volatile double handshakeMillis = -1;
+    /**
+     * 新ip默认是可用的，保证新入池的ip可以拿到流量
+     */
+    private volatile double successRatio = 1;
+    private volatile int samples = 0;
+
+    public void onConnect(long nanos) {
+        connectMillis = ewma(connectMillis, TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0);
+    }
+
+    /**
+     * 握手成功，代表一次完整的连接尝试成功
+     */
+    public void onHandshake(long nanos) {
+        handshakeMillis = ewma(handshakeMillis, TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0);
+        onResult(true);
+    }
+
+    /**
+     * 连接或者握手失败，目标不可达等和ip无关的失败不需要记录
+     */
+    public void onFailure() {
+        onResult(false);
+    }
+
+    private void onResult(boolean success) {
+        successRatio = successRatio * (1 - ALPHA) + (success ? ALPHA : 0);
+        if (samples < Integer.MAX_VALUE) {
+            samples++;
+        }
+    }
+
+    private static double ewma(double current, double sample) {
+        return current < 0 ? sample : current * (1 - ALPHA) + sample * ALPHA;
+    }
+
+    public boolean hasLatency() {
+        return connectMillis >= 0 || handshakeMillis >= 0;
+    }
+
+    /**
+     * 建立一条可用连接的预期耗时，命中连接缓存时没有连接耗时样本，此时只计算握手耗时
+     */
+    public double latencyMillis() {
+        return Math.max(connectMillis, 0) + Math.max(handshakeMillis, 0);
+    }
+
+    /**
+     * @return 评分越高ip越好，只有在同一个ip池内比较才有意义
+     */
+    public double score() {
+        return successRatio / (latencyMillis() + LATENCY_BASE_MILLIS);
+    }
+
+    /**
+     * 最近的尝试大部分失败
+     */
+    public boolean isPoor() {
+        return samples >= MIN_RATIO_SAMPLES && successRatio < 0.5;
+    }
+
+    /**
+     * 最近的尝试几乎都成功，偶发的失败不应该让它下线
+     */
+    public boolean isGood() {
+        return samples >= MIN_RATIO_SAMPLES * 2 && successRatio >= 0.9;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connect:%.1fms handshake:%.1fms success:%.2f samples:%d",
+                connectMillis, handshakeMillis, successRatio, samples);
+    }
+}
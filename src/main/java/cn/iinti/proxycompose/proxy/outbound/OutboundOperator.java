@@ -5,19 +5,32 @@ import cn.iinti.proxycompose.utils.NettyThreadPools;
 import cn.iinti.proxycompose.proxy.Session;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class OutboundOperator {
     private static final Bootstrap outboundBootstrap = buildOutboundBootstrap();
 
+    /**
+     * 绑定到特定eventLoop的bootstrap，除group之外的配置都和outboundBootstrap一致
+     */
+    private static final ConcurrentMap<EventLoop, Bootstrap> eventLoopBootstraps = new ConcurrentHashMap<>();
+
     private static Bootstrap buildOutboundBootstrap() {
-        return new Bootstrap()
+        Bootstrap bootstrap = new Bootstrap()
                 .group(NettyThreadPools.outboundGroup)
-                .channelFactory(NioSocketChannel::new)
+                .channel(NettyThreadPools.socketChannelClass())
                 //上游链接在不确定协议的时候，无法确定处理器，我们使用一个插桩替代，在获取链接成功之后我们再手动构造
                 .handler(new StubHandler())
                 // 到代理ip的连接时间，设置短一些，设置为5s，如果不成功那么通过其他代理重试
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000);
+        if (NettyThreadPools.useSplice) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+        return bootstrap;
     }
 
     @ChannelHandler.Sharable
@@ -42,6 +55,49 @@ public class OutboundOperator {
         }));
     }
 
+    /**
+     * @param eventLoop 上游channel注册的eventLoop，为null时使用公共的outbound线程池
+     */
+    public static void connectToServer(String host, int port, EventLoop eventLoop, ValueCallback<Channel> callback) {
+        if (eventLoop == null) {
+            connectToServer(host, port, callback);
+            return;
+        }
+        Bootstrap bootstrap = eventLoopBootstraps.computeIfAbsent(eventLoop, outboundBootstrap::clone);
+        bootstrap.connect(host, port).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                ValueCallback.failed(callback, future.cause());
+            } else {
+                ValueCallback.success(callback, future.channel());
+            }
+        });
+    }
+
+    /**
+     * 把一个空闲的channel迁移到另一个eventLoop上，用于连接池中的缓存连接
+     */
+    public static void migrateToEventLoop(Channel channel, EventLoop eventLoop, ValueCallback<Channel> callback) {
+        if (channel.eventLoop() == eventLoop) {
+            ValueCallback.success(callback, channel);
+            return;
+        }
+        channel.deregister().addListener(deregisterFuture -> {
+            if (!deregisterFuture.isSuccess()) {
+                channel.close();
+                ValueCallback.failed(callback, deregisterFuture.cause());
+                return;
+            }
+            eventLoop.register(channel).addListener(registerFuture -> {
+                if (!registerFuture.isSuccess()) {
+                    channel.close();
+                    ValueCallback.failed(callback, registerFuture.cause());
+                    return;
+                }
+                ValueCallback.success(callback, channel);
+            });
+        });
+    }
+
     public static void connectToOutbound(
             Session session, long sessionHash, String tag,
             ActiveProxyIp.ActivityProxyIpBindObserver observer,
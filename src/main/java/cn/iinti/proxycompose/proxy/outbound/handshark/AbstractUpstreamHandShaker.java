@@ -3,6 +3,8 @@ package cn.iinti.proxycompose.proxy.outbound.handshark;
 
 import cn.iinti.proxycompose.Settings;
 import cn.iinti.proxycompose.loop.ValueCallback;
+import cn.iinti.proxycompose.metrics.ConnectStage;
+import cn.iinti.proxycompose.metrics.IpSourceMetrics;
 import cn.iinti.proxycompose.proxy.Session;
 import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
 import cn.iinti.proxycompose.proxy.outbound.IpPool;
@@ -23,6 +25,7 @@ public abstract class AbstractUpstreamHandShaker {
 
     protected SubscribeRecorders.SubscribeRecorder recorder;
     private final AtomicBoolean hasEmitResult = new AtomicBoolean(false);
+    private final long startNanos = System.nanoTime();
 
     /**
      * @param session  对应隧道
@@ -81,6 +84,9 @@ public abstract class AbstractUpstreamHandShaker {
 
     protected void emitSuccess() {
         if (hasEmitResult.compareAndSet(false, true)) {
+            long latency = System.nanoTime() - startNanos;
+            sourceMetrics().getStageLatencies().record(ConnectStage.HANDSHAKE, latency);
+            activeProxyIp.getQuality().onHandshake(latency);
             ValueCallback.success(callback, true);
         }
     }
@@ -100,6 +106,7 @@ public abstract class AbstractUpstreamHandShaker {
                 value = ValueCallback.Value.failed(msg.toString());
             }
             value.v = canRetry;
+            sourceMetrics().getHandShakeFailed().increment();
             String errorMsg = value.e.getMessage();
             recorder.recordEvent(() -> "HandShark failed", value.e);
             try {
@@ -115,6 +122,7 @@ public abstract class AbstractUpstreamHandShaker {
                     }
                 }
                 if (needOfflineProxy) {
+                    activeProxyIp.getQuality().onFailure();
                     // 代理云ip过期之后，可能允许连接，但是鉴权失败，这是我们建议建议下线ip
                     ActiveProxyIp.offlineBindingProxy(
                             outboundChannel,
@@ -128,5 +136,9 @@ public abstract class AbstractUpstreamHandShaker {
     }
 
 
+    private IpSourceMetrics sourceMetrics() {
+        return activeProxyIp.getIpPool().getRuntimeIpSource().getMetrics();
+    }
+
     public abstract void doHandShark();
 }
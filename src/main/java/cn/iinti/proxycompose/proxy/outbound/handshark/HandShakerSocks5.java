@@ -6,16 +6,28 @@ import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
 import cn.iinti.proxycompose.utils.IpUtils;
 import cn.iinti.proxycompose.loop.ValueCallback;
 import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.MessageToByteEncoder;
 import io.netty.handler.codec.socks.*;
+import io.netty.util.AttributeKey;
+import io.netty.util.NetUtil;
 import io.netty.util.ReferenceCountUtil;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.List;
 
 public class HandShakerSocks5 extends AbstractUpstreamHandShaker {
+    /**
+     * udp associate成功之后，上游代理服务器用于接收udp报文的地址
+     */
+    public static final AttributeKey<InetSocketAddress> UDP_RELAY_ADDRESS = AttributeKey.newInstance("UDP_RELAY_ADDRESS");
+
     private final ChannelPipeline pipeline;
 
     /**
@@ -55,14 +67,23 @@ public class HandShakerSocks5 extends AbstractUpstreamHandShaker {
 
 
     private void doConnectToUpstream() {
-        // use proxy switch ,this means we just need support ipv4 & tcp
-        IpAndPort ipAndPort = session.getConnectTarget();
-
-        SocksCmdRequest socksCmdRequest = new SocksCmdRequest(SocksCmdType.CONNECT,
-                IpUtils.isIpV4(ipAndPort.getIp()) ? SocksAddressType.IPv4 : SocksAddressType.DOMAIN,
-                ipAndPort.getIp(), ipAndPort.getPort());
+        SocksRequest socksCmdRequest;
+        if (session.isUdpAssociate()) {
+            // 我们发送udp报文的地址在绑定之前是未知的，按照协议填写全0
+            socksCmdRequest = new SocksUdpAssociateRequest(SocksAddressType.IPv4, "0.0.0.0", 0);
+        } else {
+            // use proxy switch ,this means we just need support ipv4 & tcp
+            IpAndPort ipAndPort = session.getConnectTarget();
+            socksCmdRequest = new SocksCmdRequest(SocksCmdType.CONNECT,
+                    IpUtils.isIpV4(ipAndPort.getIp()) ? SocksAddressType.IPv4 : SocksAddressType.DOMAIN,
+                    ipAndPort.getIp(), ipAndPort.getPort());
+        }
 
         recorder.recordEvent(() -> "send cmd request to upstream");
+        if (socksCmdRequest instanceof SocksUdpAssociateRequest) {
+            // 加在SocksMessageEncoder之后，出站消息先经过它，其他消息原样交给SocksMessageEncoder
+            pipeline.addLast(new UdpAssociateRequestEncoder());
+        }
         pipeline.addFirst(new SocksCmdResponseDecoder());
         outboundChannel.writeAndFlush(socksCmdRequest)
                 .addListener(future -> {
@@ -128,12 +149,49 @@ public class HandShakerSocks5 extends AbstractUpstreamHandShaker {
             emitFailed("cmd failed: " + response.cmdStatus(), true);
             return;
         }
+        if (session.isUdpAssociate()) {
+            InetSocketAddress udpRelayAddress = resolveUdpRelayAddress(response);
+            if (udpRelayAddress == null) {
+                emitFailed("upstream udp relay address is not an ip: " + response.host(), true);
+                return;
+            }
+            recorder.recordEvent(() -> "upstream udp relay address: " + udpRelayAddress);
+            outboundChannel.attr(UDP_RELAY_ADDRESS).set(udpRelayAddress);
+        }
         pipeline.remove(SocksMessageEncoder.class);
+        if (pipeline.get(UdpAssociateRequestEncoder.class) != null) {
+            pipeline.remove(UdpAssociateRequestEncoder.class);
+        }
         pipeline.remove(SocksResponseHandler.class);
         recorder.recordEvent(() -> "upstream HandShark success finally");
         emitSuccess();
     }
 
+    /**
+     * 大部分代理服务器返回全0地址，代表和控制连接使用同一个服务器地址。<br>
+     * 这里运行在eventLoop上，不能做阻塞的dns解析，项目中也没有异步的dns解析器，所以不支持域名形式的转发地址
+     *
+     * @return 转发地址，代理服务器返回域名时为null
+     */
+    private InetSocketAddress resolveUdpRelayAddress(SocksCmdResponse response) {
+        byte[] ipBytes = NetUtil.createByteArrayFromIpAddressString(response.host());
+        if (ipBytes == null) {
+            return null;
+        }
+        InetAddress relayAddress;
+        try {
+            relayAddress = InetAddress.getByAddress(ipBytes);
+        } catch (UnknownHostException e) {
+            // 只有字节长度不合法时才会抛出，这里不会发生
+            return null;
+        }
+        if (relayAddress.isAnyLocalAddress()) {
+            InetSocketAddress serverAddress = (InetSocketAddress) outboundChannel.remoteAddress();
+            return new InetSocketAddress(serverAddress.getAddress(), response.port());
+        }
+        return new InetSocketAddress(relayAddress, response.port());
+    }
+
     private void handleUpstreamSocksResponse(SocksResponse msg) {
         switch (msg.responseType()) {
             case INIT:
@@ -167,4 +225,14 @@ public class HandShakerSocks5 extends AbstractUpstreamHandShaker {
             }
         }
     }
+
+    /**
+     * udp associate请求的出站编码，不经过SocksMessageEncoder调用netty已经废弃的encodeAsByteBuf
+     */
+    private static class UdpAssociateRequestEncoder extends MessageToByteEncoder<SocksUdpAssociateRequest> {
+        @Override
+        protected void encode(ChannelHandlerContext ctx, SocksUdpAssociateRequest msg, ByteBuf out) {
+            msg.encode(out);
+        }
+    }
 }
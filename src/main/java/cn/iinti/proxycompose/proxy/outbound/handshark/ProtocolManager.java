@@ -1,5 +1,6 @@
 package cn.iinti.proxycompose.proxy.outbound.handshark;
 
+import cn.iinti.proxycompose.Settings;
 import cn.iinti.proxycompose.loop.ValueCallback;
 import cn.iinti.proxycompose.proxy.Session;
 import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
@@ -47,8 +48,16 @@ public class ProtocolManager {
     }
 
 
+    /**
+     * udp associate只能由上游socks5代理完成，不存在协议叠加
+     */
+    public static Protocol chooseUdpUpstreamProtocol(List<Protocol> supportList) {
+        return supportList.contains(Protocol.SOCKS5) ? Protocol.SOCKS5 : null;
+    }
+
     public static Protocol chooseUpstreamProtocol(Protocol inboundProtocol, List<Protocol> supportList) {
-        if (inboundProtocol == Protocol.HTTP) {
+        // 正向代理模式下会解析每一个响应，上游使用http代理不存在下面说的误判问题，并且连接可以跨目标复用，所以直接使用原生协议
+        if (inboundProtocol == Protocol.HTTP && !Settings.global.httpForwardMode.value) {
             // 特殊逻辑，如果是http，我们不让上游代理走http，而是尽量走socks
             // 在代理失败判定过程，纯http的判定需要侵入到http协议报文中感知，并且可能因为上游代理服务器的实现导致存在可能的误判
             // 这是因为http的鉴权、连接建立、业务请求发送是来自同一个请求流程。我们可以考虑实现http侵入感知，但是这会带来巨大的系统开销和编程难度
@@ -0,0 +1,52 @@
+package cn.iinti.proxycompose.proxy.outbound.handshark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.socks.SocksAddressType;
+import io.netty.handler.codec.socks.SocksCmdType;
+import io.netty.handler.codec.socks.SocksRequest;
+import io.netty.handler.codec.socks.SocksRequestType;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NetUtil;
+import lombok.Getter;
+
+/**
+ * socks5 udp associate请求。<br>
+ * 客户端在发送报文之前通常不知道自己的udp地址，按照协议会填写0.0.0.0:0，
+ * 但是netty的SocksCmdRequest不允许0端口，所以udp associate单独使用这个消息，入站和出站都可以使用
+ */
+@Getter
+public class SocksUdpAssociateRequest extends SocksRequest {
+    private final SocksAddressType addressType;
+    private final String host;
+    private final int port;
+
+    public SocksUdpAssociateRequest(SocksAddressType addressType, String host, int port) {
+        super(SocksRequestType.CMD);
+        this.addressType = addressType;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * SocksMessage要求实现的编码方法在netty中已经废弃，出站编码由{@link HandShakerSocks5}中的编码器调用{@link #encode(ByteBuf)}完成
+     */
+    @Deprecated
+    @Override
+    public void encodeAsByteBuf(ByteBuf byteBuf) {
+        encode(byteBuf);
+    }
+
+    void encode(ByteBuf byteBuf) {
+        byteBuf.writeByte(protocolVersion().byteValue());
+        byteBuf.writeByte(SocksCmdType.UDP.byteValue());
+        byteBuf.writeByte(0x00);
+        byteBuf.writeByte(addressType.byteValue());
+        if (addressType == SocksAddressType.DOMAIN) {
+            byteBuf.writeByte(host.length());
+            byteBuf.writeCharSequence(host, CharsetUtil.US_ASCII);
+        } else {
+            byteBuf.writeBytes(NetUtil.createByteArrayFromIpAddressString(host));
+        }
+        byteBuf.writeShort(port);
+    }
+}
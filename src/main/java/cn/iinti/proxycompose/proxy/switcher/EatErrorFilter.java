@@ -31,6 +31,7 @@ public class EatErrorFilter implements UpstreamHandSharkCallback {
             return;
         }
         hasSendErrorMsg = true;
+        recorder.keepTrace("handshake error");
         delegate.onHandSharkError(e);
     }
 }
\ No newline at end of file
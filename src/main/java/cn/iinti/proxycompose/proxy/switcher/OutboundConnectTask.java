@@ -3,6 +3,7 @@ package cn.iinti.proxycompose.proxy.switcher;
 
 import cn.iinti.proxycompose.Settings;
 import cn.iinti.proxycompose.proxy.ProxyCompose;
+import cn.iinti.proxycompose.proxy.RuntimeIpSource;
 import cn.iinti.proxycompose.proxy.Session;
 import cn.iinti.proxycompose.proxy.outbound.ActiveProxyIp;
 import cn.iinti.proxycompose.proxy.outbound.OutboundOperator;
@@ -10,12 +11,16 @@ import cn.iinti.proxycompose.proxy.outbound.handshark.AbstractUpstreamHandShaker
 import cn.iinti.proxycompose.proxy.outbound.handshark.Protocol;
 import cn.iinti.proxycompose.proxy.outbound.handshark.ProtocolManager;
 import cn.iinti.proxycompose.utils.ConsistentHashUtil;
+import cn.iinti.proxycompose.loop.Looper;
 import cn.iinti.proxycompose.loop.ParallelExecutor;
+import cn.iinti.proxycompose.loop.TimingWheel;
 import cn.iinti.proxycompose.loop.ValueCallback;
 import cn.iinti.proxycompose.trace.Recorder;
 import io.netty.channel.Channel;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 这是本系统最核心的心脏部位，他决定了整个ip池的上下游连接选择过程
@@ -27,6 +32,20 @@ public class OutboundConnectTask implements ActiveProxyIp.ActivityProxyIpBindObs
     // 失败重试次数
     public int failoverCount = 0;
     private String resolvedIpSource = "unknown";
+    private long startNanos;
+
+    /**
+     * 以下状态（包括failoverCount）只在compose线程上读写：proxyForward、onBind、对冲的定时任务和尝试失败的回调都会切换到compose线程。
+     * 当前这一轮还没有结束的连接尝试数，第一轮可能因为对冲同时存在两个尝试
+     */
+    private int pendingAttempts = 0;
+    private long roundStartNanos;
+    /**
+     * 已经有连接尝试握手成功，其他尝试拿到的连接都需要回收
+     */
+    private final AtomicBoolean settled = new AtomicBoolean(false);
+    private boolean hedgeArmed = false;
+    private volatile TimingWheel.Timeout hedgeTimeout;
 
     public static void startConnectOutbound(Session session, UpstreamHandSharkCallback callback) {
         new OutboundConnectTask(session, callback).doStart();
@@ -39,7 +58,9 @@ public class OutboundConnectTask implements ActiveProxyIp.ActivityProxyIpBindObs
     }
 
     private void doStart() {
-        proxyForward(null);
+        session.getProxyServer().getProxyCompose().getMetrics().getConnectTasks().increment();
+        startNanos = System.nanoTime();
+        composeWorkThread().execute(() -> proxyForward(null));
     }
 
 
@@ -49,12 +70,19 @@ public class OutboundConnectTask implements ActiveProxyIp.ActivityProxyIpBindObs
             if (throwable == null) {
                 throwable = new RuntimeException("get upstream failed");
             }
+            session.getProxyServer().getProxyCompose().getMetrics().getConnectFailed().increment();
+            recorder.keepTrace("failover exhausted");
             callback.onHandSharkError(throwable);
             return;
         }
+        if (failoverCount > 0) {
+            session.getProxyServer().getProxyCompose().getMetrics().getFailoverRetries().increment();
+        }
         failoverCount++;
+        pendingAttempts = 1;
+        roundStartNanos = System.nanoTime();
 
-        ValueCallback<Channel> channelCallback = makeChannelFinishedEvent();
+        ValueCallback<Channel> channelCallback = makeChannelFinishedEvent(roundStartNanos, false);
 
         long sessionHash = session.getSessionHash();
         ProxyCompose proxyCompose = session.getProxyServer().getProxyCompose();
@@ -65,7 +93,7 @@ public class OutboundConnectTask implements ActiveProxyIp.ActivityProxyIpBindObs
             proxyCompose.fetchCachedSession(session, value -> {
                 if (value.isSuccess()) {
                     recorder.recordEvent(() -> "this request session hold, reuse cached ip");
-                    value.v.borrowConnect(recorder, "CachedIp", this, channelCallback);
+                    value.v.borrowConnect(recorder, "CachedIp", session.upstreamEventLoop(), this, channelCallback);
                 } else {
                     recorder.recordEvent(() -> "fist choose ip resource");
                     OutboundOperator.connectToOutbound(session, sessionHash, "first create-> ", this, channelCallback);
@@ -78,10 +106,78 @@ public class OutboundConnectTask implements ActiveProxyIp.ActivityProxyIpBindObs
         failoverConnect(channelCallback, sessionHash, proxyCompose);
     }
 
+    /**
+     * 在ip池的线程上回调，对冲连接的ip可能来自另一个ip源，所以切换到compose线程再访问状态
+     */
     @Override
     public void onBind(ActiveProxyIp activeProxyIp) {
-        resolvedIpSource = activeProxyIp.getIpPool()
-                .getRuntimeIpSource().getName();
+        RuntimeIpSource ipSource = activeProxyIp.getIpPool().getRuntimeIpSource();
+        composeWorkThread().execute(() -> {
+            resolvedIpSource = ipSource.getName();
+            if (failoverCount == 1 && !hedgeArmed && Settings.global.hedgeConnect.value) {
+                hedgeArmed = true;
+                armHedge(ipSource);
+            }
+        });
+    }
+
+    /**
+     * 第一次尝试超过ip源最近的连接+握手耗时p95还没有握手完成时，在环上的另一个位置发起对冲连接，先完成握手的胜出。
+     * 大部分请求在p95之内完成，所以只有慢尾部的请求会多占用一条上游连接
+     */
+    private void armHedge(RuntimeIpSource ipSource) {
+        long p95Micros = ipSource.getMetrics().getConnectHandshakeP95().getMicros();
+        if (p95Micros <= 0) {
+            // 样本不足
+            return;
+        }
+        long delayMillis = TimeUnit.MICROSECONDS.toMillis(p95Micros)
+                - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStartNanos);
+        hedgeTimeout = composeWorkThread().postDelay(this::startHedge, delayMillis);
+    }
+
+    private void startHedge() {
+        if (settled.get() || failoverCount != 1 || pendingAttempts == 0) {
+            return;
+        }
+        pendingAttempts++;
+        session.getProxyServer().getProxyCompose().getMetrics().getHedgedConnects().increment();
+        recorder.keepTrace("hedged connect");
+        String tag = "hedge -> ";
+        recorder.recordEvent(() -> tag + "first attempt slower than p95, start hedged connect");
+        long hedgeHash = ConsistentHashUtil.murHash(session.getSessionHash() + "_hedge");
+        OutboundOperator.connectToOutbound(session, hedgeHash, tag, this,
+                makeChannelFinishedEvent(System.nanoTime(), true));
+    }
+
+    private void cancelHedge() {
+        TimingWheel.Timeout timeout = hedgeTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * 一个连接尝试失败，本轮所有尝试都失败之后才进入重试
+     */
+    private void onAttemptFailed(Throwable throwable, boolean canRetry) {
+        composeWorkThread().execute(() -> {
+            pendingAttempts--;
+            if (settled.get() || pendingAttempts > 0) {
+                // 对冲中的另一个尝试还没有结束，由它决定结果
+                return;
+            }
+            cancelHedge();
+            if (canRetry) {
+                proxyForward(throwable);
+                return;
+            }
+            callback.onHandSharkError(throwable);
+        });
+    }
+
+    private Looper composeWorkThread() {
+        return session.getProxyServer().getProxyCompose().getComposeWorkThead();
     }
 
 
@@ -155,25 +251,37 @@ public class OutboundConnectTask implements ActiveProxyIp.ActivityProxyIpBindObs
         }
     }
 
-    private ValueCallback<Channel> makeChannelFinishedEvent() {
+    /**
+     * @param attemptStartNanos 本次尝试的开始时间，用于统计连接+握手耗时
+     * @param hedge             是否为对冲连接
+     */
+    private ValueCallback<Channel> makeChannelFinishedEvent(long attemptStartNanos, boolean hedge) {
         return channelValue -> {
             if (!channelValue.isSuccess()) {
                 // retry
-                proxyForward(channelValue.e);
+                onAttemptFailed(channelValue.e, true);
                 return;
             }
             Channel channel = channelValue.v;
+            if (settled.get()) {
+                // 另一个尝试已经握手成功，还没有开始握手的连接可以归还缓存
+                recorder.recordEvent(() -> "connect task settled, restore cache channel");
+                ActiveProxyIp.restoreCache(channel);
+                return;
+            }
 
             // 成功之后，和上游ip进行鉴权
             ActiveProxyIp activeProxyIp = ActiveProxyIp.getBinding(channel);
-            List<Protocol> supportProtocolList = activeProxyIp.getIpPool().getRuntimeIpSource().getSupportProtocolList();
+            RuntimeIpSource ipSource = activeProxyIp.getIpPool().getRuntimeIpSource();
+            List<Protocol> supportProtocolList = ipSource.getSupportProtocolList();
 
-            Protocol outboundProtocol = ProtocolManager.chooseUpstreamProtocol(session.getInboundProtocol(),
-                    supportProtocolList);
+            Protocol outboundProtocol = session.isUdpAssociate() ?
+                    ProtocolManager.chooseUdpUpstreamProtocol(supportProtocolList) :
+                    ProtocolManager.chooseUpstreamProtocol(session.getInboundProtocol(), supportProtocolList);
 
             if (outboundProtocol == null) {
-                callback.onHandSharkError(new RuntimeException("no support protocol from upstream"));
                 channel.close();
+                onAttemptFailed(new RuntimeException("no support protocol from upstream"), false);
                 return;
             }
 
@@ -181,19 +289,31 @@ public class OutboundConnectTask implements ActiveProxyIp.ActivityProxyIpBindObs
                     outboundProtocol, session, channel, activeProxyIp,
                     value -> {
                         if (value.isSuccess()) {
+                            ipSource.getMetrics().getConnectHandshakeLatency().recordNanos(System.nanoTime() - attemptStartNanos);
+                            if (!settled.compareAndSet(false, true)) {
+                                // 握手之后的连接已经绑定了目标，不能归还缓存
+                                recorder.recordEvent(() -> "HandShark success after connect task settled, close channel");
+                                session.getProxyServer().getProxyCompose().getMetrics().getHedgeWasted().increment();
+                                channel.close();
+                                return;
+                            }
+                            cancelHedge();
+                            if (hedge) {
+                                session.getProxyServer().getProxyCompose().getMetrics().getHedgeWins().increment();
+                            }
                             recorder.recordEvent(() -> "HandShark success");
+                            long costMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                            if (costMillis > Settings.global.traceSlowHandshakeMillis.value) {
+                                recorder.keepTrace("slow handshake: " + costMillis + "ms");
+                            }
                             callback.onHandSharkFinished(channel, outboundProtocol);
 
                             session.getProxyServer().getProxyCompose().markSessionUse(session, activeProxyIp);
                             return;
                         }
                         channel.close();
-                        if (value.v) {
-                            // 可以被重试，那么走重试逻辑
-                            proxyForward(value.e);
-                            return;
-                        }
-                        callback.onHandSharkError(value.e);
+                        // 可以被重试，那么走重试逻辑
+                        onAttemptFailed(value.e, value.v);
                     });
 
             recorder.recordMosaicMsgIfSubscribeRecorder(() -> "begin HandShark with channel: " + channel);
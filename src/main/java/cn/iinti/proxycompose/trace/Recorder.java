@@ -8,6 +8,7 @@ import cn.iinti.proxycompose.trace.utils.StringSplitter;
 import cn.iinti.proxycompose.trace.utils.ThrowablePrinter;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.function.Function;
 
@@ -20,10 +21,14 @@ public abstract class Recorder {
 
 
     public void recordEvent(String message) {
-        recordEvent(() -> message, (Throwable) null);
+        recordEvent(message, (Throwable) null);
     }
 
     public void recordEvent(String message, Throwable throwable) {
+        // 先判断是否输出，被过滤的日志不需要创建lambda对象
+        if (!isEnabled()) {
+            return;
+        }
         recordEvent(() -> message, throwable);
     }
 
@@ -32,11 +37,33 @@ public abstract class Recorder {
     }
 
     public <T> void recordEvent(T t, Function<T, String> fuc) {
+        if (!isEnabled()) {
+            return;
+        }
         recordEvent(() -> fuc.apply(t));
     }
 
     public abstract void recordEvent(MessageGetter messageGetter, Throwable throwable);
 
+    /**
+     * 当前recorder是否会真正输出日志，热点路径上可以先判断本方法，避免无意义的字符串拼接和对象分配
+     */
+    public boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * 标记本次trace需要保留（如握手失败），用于尾部采样
+     */
+    public void keepTrace(String reason) {
+    }
+
+    /**
+     * 会话结束，尾部采样的recorder在这里决定是否落盘
+     */
+    public void finishTrace() {
+    }
+
     public void recordMosaicMsgIfSubscribeRecorder(MessageGetter message) {
         if (this instanceof SubscribeRecorders.SubscribeRecorder) {
             SubscribeRecorders.SubscribeRecorder s = (SubscribeRecorders.SubscribeRecorder) this;
@@ -47,6 +74,10 @@ public abstract class Recorder {
     }
 
     protected Collection<String> splitMsg(String msg, Throwable throwable) {
+        if (throwable == null && msg != null && msg.indexOf('\n') < 0) {
+            // 绝大部分日志都是单行的，不需要走切分逻辑
+            return msg.isEmpty() ? Collections.emptyList() : Collections.singletonList(msg);
+        }
         Collection<String> strings = StringSplitter.split(msg, '\n');
         if (throwable == null) {
             return strings;
@@ -68,5 +99,10 @@ public abstract class Recorder {
         public void recordEvent(MessageGetter messageGetter, Throwable throwable) {
 
         }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
     };
 }
@@ -1,20 +1,22 @@
 package cn.iinti.proxycompose.trace.impl;
 
+import cn.iinti.proxycompose.Settings;
 import cn.iinti.proxycompose.trace.Recorder;
+import cn.iinti.proxycompose.trace.store.TraceStore;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
 public class DiskRecorders {
 
-    public static DiskRecorders USER_SESSION = new DiskRecorders("user", false);
+    public static DiskRecorders USER_SESSION = new DiskRecorders("user", false, true);
     /**
      * 给debug调试使用，传递本参数可以打印全流程日志
      */
@@ -32,15 +34,27 @@ public class DiskRecorders {
     @Getter
     private final boolean all;
     private final WheelSlotFilter wheelSlotFilter;
+    /**
+     * 尾部采样：会话结束时才决定是否落盘
+     */
+    private final boolean tailSample;
 
 
     public DiskRecorders(String tag, boolean all) {
+        this(tag, all, false);
+    }
+
+    public DiskRecorders(String tag, boolean all, boolean tailSample) {
         this.tag = tag;
         this.all = all;
+        this.tailSample = tailSample;
         this.wheelSlotFilter = new WheelSlotFilter(all);
     }
 
     public DiskRecorder acquireRecorder(String sessionId, boolean debug) {
+        if (tailSample && !all && !debug && Settings.global.traceTailSampling.value) {
+            return new TailSampleRecorder(sessionId);
+        }
         return this.wheelSlotFilter.acquireRecorder(debug) ?
                 new DiskRecorderImpl(sessionId) : nopDiskRecorder;
     }
@@ -50,14 +64,37 @@ public class DiskRecorders {
 
         abstract void recordBatchEvent(Collection<String> msgLines);
 
+        /**
+         * 在recorder线程上调用，消息可以延迟到真正需要输出时再格式化
+         */
+        abstract void recordRawEvent(MessageGetter messageGetter, Throwable throwable);
+
         abstract boolean enable();
+
+        /**
+         * 是否需要在记录事件的线程上立即求值，默认延迟到recorder线程上格式化
+         */
+        boolean captureOnRecord() {
+            return false;
+        }
+
+        /**
+         * 标记本会话的trace需要保留，在recorder线程上调用
+         */
+        void markKeep(String reason) {
+        }
+
+        /**
+         * 会话结束，在recorder线程上调用
+         */
+        void onSessionEnd() {
+        }
     }
 
-    private class DiskRecorderImpl extends DiskRecorder {
+    private class DiskRecorderImpl extends DiskRecorder implements TraceRingBuffer.EventHandler {
         private final String sessionId;
 
-        private LinkedList<String> historyMsg = new LinkedList<>();
-        private static final int MAX_HISTORY = 100;
+        private HistoryRing history = new HistoryRing();
 
         private DiskRecorderImpl(String sessionId) {
             this.sessionId = sessionId;
@@ -66,26 +103,56 @@ public class DiskRecorders {
         @Override
         void recordBatchEvent(Collection<String> msgLines) {
             thread.execute(() -> {
-                MDC.put("Scene", tag);
-                historyMsg.addAll(msgLines);
-                int overflow = historyMsg.size() - MAX_HISTORY;
-                for (int i = 0; i < overflow; i++) {
-                    historyMsg.removeFirst();
+                history.add(msgLines, null);
+                TraceStore traceStore = TraceStore.get();
+                if (traceStore != null) {
+                    for (String line : msgLines) {
+                        traceStore.append(sessionId, tag, line);
+                    }
+                    return;
                 }
-                msgLines.forEach(s -> log.info("sessionId:" + sessionId + " -> " + s));
+                writeLog(msgLines);
             });
         }
 
+        private void writeLog(Collection<String> msgLines) {
+            MDC.put("Scene", tag);
+            for (String line : msgLines) {
+                log.info("sessionId:{} -> {}", sessionId, line);
+            }
+        }
+
         @Override
         public void recordEvent(MessageGetter messageGetter, Throwable throwable) {
-            recordBatchEvent(splitMsg(messageGetter.getMessage(), throwable));
+            TraceRingBuffer.INSTANCE.publish(this, messageGetter, throwable);
+        }
+
+        @Override
+        public void handleEvent(MessageGetter messageGetter, Throwable throwable) {
+            recordRawEvent(messageGetter, throwable);
+        }
+
+        @Override
+        void recordRawEvent(MessageGetter messageGetter, Throwable throwable) {
+            String msg = messageGetter.getMessage();
+            // 历史记录保存原始消息，等到真正读取的时候再切分
+            history.add(msg, throwable);
+            TraceStore traceStore = TraceStore.get();
+            if (traceStore == null) {
+                writeLog(splitMsg(msg, throwable));
+                return;
+            }
+            if (throwable != null) {
+                msg = String.join("\n", splitMsg(msg, throwable));
+            }
+            traceStore.append(sessionId, tag, msg);
         }
 
         public void takeHistory(Consumer<List<String>> consumer) {
             thread.execute(() -> {
-                LinkedList<String> historySnapshot = historyMsg;
-                historyMsg = new LinkedList<>();
-                consumer.accept(historySnapshot);
+                HistoryRing historySnapshot = history;
+                history = new HistoryRing();
+                consumer.accept(historySnapshot.toLines(this::splitMsg));
             });
         }
 
@@ -95,6 +162,240 @@ public class DiskRecorders {
     }
 
 
+    /**
+     * 最近的日志事件，固定容量的环形数组，写满之后覆盖最老的事件。
+     * 保存的是未切分的原始消息（或者已经切分好的行），只有在读取历史时才切分，大部分历史记录不会被读取
+     */
+    private static class HistoryRing {
+        private static final int MAX_HISTORY = 100;
+
+        /**
+         * String或者Collection&lt;String&gt;
+         */
+        private Object[] messages = new Object[8];
+        private Throwable[] throwables = new Throwable[8];
+        private int head = 0;
+        private int size = 0;
+
+        void add(Object message, Throwable throwable) {
+            if (size == messages.length && size < MAX_HISTORY) {
+                // 容量按需增长，大部分会话不会产生太多日志
+                int newLength = Math.min(size << 1, MAX_HISTORY);
+                Object[] newMessages = new Object[newLength];
+                Throwable[] newThrowables = new Throwable[newLength];
+                for (int i = 0; i < size; i++) {
+                    int index = (head + i) % messages.length;
+                    newMessages[i] = messages[index];
+                    newThrowables[i] = throwables[index];
+                }
+                messages = newMessages;
+                throwables = newThrowables;
+                head = 0;
+            }
+            int index = (head + size) % messages.length;
+            messages[index] = message;
+            throwables[index] = throwable;
+            if (size == messages.length) {
+                head = (head + 1) % messages.length;
+            } else {
+                size++;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<String> toLines(BiFunction<String, Throwable, Collection<String>> splitter) {
+            LinkedList<String> lines = new LinkedList<>();
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % messages.length;
+                Object message = messages[index];
+                if (message instanceof Collection) {
+                    lines.addAll((Collection<String>) message);
+                } else {
+                    lines.addAll(splitter.apply((String) message, throwables[index]));
+                }
+            }
+            // 和按行保存时一样，最多返回MAX_HISTORY行
+            while (lines.size() > MAX_HISTORY) {
+                lines.removeFirst();
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * 尾部采样的recorder：会话过程中只在内存中缓存有限数量的事件（不切分、不输出），
+     * 会话结束时如果出现过握手失败、failover耗尽、慢握手等情况则全部落盘，否则按照采样率随机落盘。
+     * 和头部采样相比，失败的会话总是可以被保留下来。<br>
+     * 缓存保留会话开头的{@link #HEAD_SIZE}个事件（协议识别、路由、ip分配），之后的事件写入环形数组，
+     * 只保留最近的{@link #TAIL_SIZE}个，失败通常发生在会话末尾，不能因为缓存写满而丢失。
+     * 事件在记录时就已经求值，见{@link #captureOnRecord()}，除此之外所有状态只在recorder线程上访问
+     */
+    private class TailSampleRecorder extends DiskRecorder implements TraceRingBuffer.EventHandler {
+        private static final int HEAD_SIZE = 32;
+        private static final int TAIL_SIZE = 96;
+
+        private final String sessionId;
+        private String[] messages = new String[16];
+        private Throwable[] throwables = new Throwable[16];
+        private int size = 0;
+
+        /**
+         * 开头的事件写满之后才分配
+         */
+        private String[] tailMessages;
+        private Throwable[] tailThrowables;
+        /**
+         * 写入环形数组的事件总数，超过{@link #TAIL_SIZE}的部分被覆盖，落盘时提示trace被截断
+         */
+        private long tailCount = 0;
+        private String keepReason;
+        private boolean finished = false;
+
+        /**
+         * 决定落盘之后，后续事件直接交给这个recorder
+         */
+        private volatile DiskRecorderImpl delegate;
+        private volatile boolean enable = true;
+
+        private TailSampleRecorder(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void recordEvent(MessageGetter messageGetter, Throwable throwable) {
+            String message = messageGetter.getMessage();
+            TraceRingBuffer.INSTANCE.publish(this, () -> message, throwable);
+        }
+
+        @Override
+        public void handleEvent(MessageGetter messageGetter, Throwable throwable) {
+            recordRawEvent(messageGetter, throwable);
+        }
+
+        @Override
+        void recordRawEvent(MessageGetter messageGetter, Throwable throwable) {
+            if (delegate != null) {
+                delegate.recordRawEvent(messageGetter, throwable);
+                return;
+            }
+            if (finished) {
+                return;
+            }
+            String message = messageGetter.getMessage();
+            if (size < HEAD_SIZE) {
+                if (size == messages.length) {
+                    messages = Arrays.copyOf(messages, size << 1);
+                    throwables = Arrays.copyOf(throwables, size << 1);
+                }
+                messages[size] = message;
+                throwables[size] = throwable;
+                size++;
+                return;
+            }
+            if (tailMessages == null) {
+                tailMessages = new String[TAIL_SIZE];
+                tailThrowables = new Throwable[TAIL_SIZE];
+            }
+            int index = (int) (tailCount % TAIL_SIZE);
+            tailMessages[index] = message;
+            tailThrowables[index] = throwable;
+            tailCount++;
+        }
+
+        @Override
+        void recordBatchEvent(Collection<String> msgLines) {
+            String msg = String.join("\n", msgLines);
+            recordRawEvent(() -> msg, null);
+        }
+
+        /**
+         * 事件会被缓存到会话结束，lambda如果延迟到recorder线程上求值，可能读取到已经释放的ByteBuf或者已经变化的handler状态
+         */
+        @Override
+        boolean captureOnRecord() {
+            return true;
+        }
+
+        @Override
+        void markKeep(String reason) {
+            if (keepReason == null) {
+                keepReason = reason;
+            }
+        }
+
+        @Override
+        void onSessionEnd() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            String reason = keepReason;
+            if (reason == null) {
+                int sampleRate = Settings.global.traceSampleRate.value;
+                if (ThreadLocalRandom.current().nextInt(100) >= sampleRate) {
+                    release();
+                    return;
+                }
+                reason = "random sample";
+            }
+            DiskRecorderImpl diskRecorder = new DiskRecorderImpl(sessionId);
+            forEachBuffered((message, throwable) -> diskRecorder.recordBatchEvent(splitMsg(message, throwable)));
+            String finalReason = reason;
+            diskRecorder.recordRawEvent(() -> "trace kept by tail sampling: " + finalReason, null);
+            release();
+            // 会话关闭之后可能仍然有少量的事件，直接落盘
+            delegate = diskRecorder;
+        }
+
+        /**
+         * 按时间顺序遍历缓存的事件，中间被覆盖的部分用一条提示代替
+         */
+        private void forEachBuffered(BiConsumer<String, Throwable> consumer) {
+            for (int i = 0; i < size; i++) {
+                consumer.accept(messages[i], throwables[i]);
+            }
+            if (tailCount == 0) {
+                return;
+            }
+            long dropped = tailCount - Math.min(tailCount, TAIL_SIZE);
+            if (dropped > 0) {
+                consumer.accept("trace truncated, dropped events: " + dropped, null);
+            }
+            for (long i = tailCount - Math.min(tailCount, TAIL_SIZE); i < tailCount; i++) {
+                int index = (int) (i % TAIL_SIZE);
+                consumer.accept(tailMessages[index], tailThrowables[index]);
+            }
+        }
+
+        private void release() {
+            enable = false;
+            messages = null;
+            throwables = null;
+            size = 0;
+            tailMessages = null;
+            tailThrowables = null;
+            tailCount = 0;
+        }
+
+        @Override
+        void takeHistory(Consumer<List<String>> consumer) {
+            thread.execute(() -> {
+                if (delegate != null) {
+                    delegate.takeHistory(consumer);
+                    return;
+                }
+                List<String> history = new ArrayList<>();
+                forEachBuffered((message, throwable) -> history.addAll(splitMsg(message, throwable)));
+                consumer.accept(history);
+            });
+        }
+
+        @Override
+        boolean enable() {
+            return enable || delegate != null;
+        }
+    }
+
     private final static DiskRecorder nopDiskRecorder = new DiskRecorder() {
         public void takeHistory(Consumer<List<String>> consumer) {
             consumer.accept(Collections.emptyList());
@@ -109,6 +410,11 @@ public class DiskRecorders {
 
         }
 
+        @Override
+        void recordRawEvent(MessageGetter messageGetter, Throwable throwable) {
+
+        }
+
         boolean enable() {
             return false;
         }
@@ -2,7 +2,7 @@ package cn.iinti.proxycompose.trace.impl;
 
 import cn.iinti.proxycompose.trace.Recorder;
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import lombok.Getter;
@@ -29,7 +29,14 @@ public class SubscribeRecorders {
     public static SubscribeRecorders OTHER = new SubscribeRecorders(DiskRecorders.OTHER, false);
 
 
+    /**
+     * 只在recorder线程读写
+     */
     private final Multimap<String, Listener> listenerRegistry = HashMultimap.create();
+    /**
+     * 有listener的scope快照，每次注册表变化后在recorder线程重新发布，供转发线程上的isEnabled无锁读取
+     */
+    private volatile ImmutableSet<String> subscribedScopes = ImmutableSet.of();
     private final Map<String, WheelSlotFilter> scopeSlotFilters = Maps.newHashMap();
     private final DiskRecorders lowLevel;
 
@@ -51,11 +58,21 @@ public class SubscribeRecorders {
     }
 
     public void registerListener(String scope, Listener listener) {
-        Recorder.workThread().execute(() -> listenerRegistry.put(scope, listener));
+        Recorder.workThread().execute(() -> {
+            listenerRegistry.put(scope, listener);
+            publishSubscribedScopes();
+        });
     }
 
     public void unregisterListener(String scope, Listener listener) {
-        Recorder.workThread().execute(() -> listenerRegistry.remove(scope, listener));
+        Recorder.workThread().execute(() -> {
+            listenerRegistry.remove(scope, listener);
+            publishSubscribedScopes();
+        });
+    }
+
+    private void publishSubscribedScopes() {
+        subscribedScopes = ImmutableSet.copyOf(listenerRegistry.keySet());
     }
 
     public SubscribeRecorder acquireRecorder(boolean debug) {
@@ -70,11 +87,11 @@ public class SubscribeRecorders {
         return new SubscribeRecorder(sessionId, lowLevel.acquireRecorder(sessionId, debug), scope);
     }
 
-    public class SubscribeRecorder extends Recorder {
+    public class SubscribeRecorder extends Recorder implements TraceRingBuffer.EventHandler {
 
         private final DiskRecorders.DiskRecorder lowLevel;
-        private String[] scopes;
-        private boolean subscribeTicket;
+        private volatile String[] scopes;
+        private volatile boolean subscribeTicket;
         private final String sessionId;
 
 
@@ -114,26 +131,89 @@ public class SubscribeRecorders {
         }
 
         @Override
-        public void recordEvent(MessageGetter messageGetter, Throwable throwable) {
-            List<Listener> targetListenerList = Lists.newArrayList();
+        public boolean isEnabled() {
+            if (lowLevel.enable()) {
+                return true;
+            }
+            if (!subscribeTicket) {
+                return false;
+            }
+            ImmutableSet<String> subscribed = subscribedScopes;
+            if (subscribed.isEmpty()) {
+                return false;
+            }
             for (String scope : scopes) {
-                Collection<Listener> listeners = listenerRegistry.get(scope);
-                targetListenerList.addAll(listeners);
+                if (subscribed.contains(scope)) {
+                    return true;
+                }
             }
+            return false;
+        }
 
-            if (!lowLevel.enable() && (targetListenerList.isEmpty() || !subscribeTicket)) {
+        @Override
+        public void recordEvent(MessageGetter messageGetter, Throwable throwable) {
+            if (!isEnabled()) {
                 // this indicate no log print need
                 return;
             }
+            if (lowLevel.captureOnRecord()) {
+                String message = messageGetter.getMessage();
+                messageGetter = () -> message;
+            }
+
+            TraceRingBuffer.INSTANCE.publish(this, messageGetter, throwable);
+        }
 
-            thread.execute(() -> {
-                Collection<String> msgLines = splitMsg(messageGetter.getMessage(), throwable);
-                lowLevel.recordBatchEvent(msgLines);
+        @Override
+        public void handleEvent(MessageGetter messageGetter, Throwable throwable) {
+            if (!hasListener()) {
+                lowLevel.recordRawEvent(messageGetter, throwable);
+                return;
+            }
+            Collection<String> msgLines = splitMsg(messageGetter.getMessage(), throwable);
+            lowLevel.recordBatchEvent(msgLines);
+
+            for (String scope : scopes) {
+                for (Listener listener : listenerRegistry.get(scope)) {
+                    for (String line : msgLines) {
+                        listener.onLogMsg(sessionId, line);
+                    }
+                }
+            }
+        }
 
-                if (subscribeTicket) {
-                    targetListenerList.forEach(listener -> msgLines.forEach(s -> listener.onLogMsg(sessionId, s)));
+        /**
+         * listener注册表只在recorder线程修改，所以只能在recorder线程调用
+         */
+        private boolean hasListener() {
+            if (!subscribeTicket) {
+                return false;
+            }
+            for (String scope : scopes) {
+                if (listenerRegistry.containsKey(scope)) {
+                    return true;
                 }
-            });
+            }
+            return false;
+        }
+
+        @Override
+        public void keepTrace(String reason) {
+            publishControl(() -> lowLevel.markKeep(reason));
+        }
+
+        @Override
+        public void finishTrace() {
+            publishControl(lowLevel::onSessionEnd);
+        }
+
+        /**
+         * 控制事件和日志事件走同一个管道，保证和本会话已经产生的事件保持顺序
+         */
+        private void publishControl(Runnable runnable) {
+            if (!TraceRingBuffer.INSTANCE.publish((messageGetter, throwable) -> runnable.run(), null, null)) {
+                thread.execute(runnable);
+            }
         }
 
         public void changeScope(String... scope) {
@@ -143,6 +223,9 @@ public class SubscribeRecorders {
 
 
         public void recordMosaicMsg(MessageGetter message) {
+            if (!isEnabled()) {
+                return;
+            }
             recordEvent(() -> NOT_SHOW_FOR_NORMAL_USER + message.getMessage());
         }
 
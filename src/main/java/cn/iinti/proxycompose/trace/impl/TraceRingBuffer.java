@@ -0,0 +1,136 @@
+package cn.iinti.proxycompose.trace.impl;
+
+import cn.iinti.proxycompose.loop.Looper;
+import cn.iinti.proxycompose.trace.Recorder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 日志事件的异步管道，参考Disruptor的预分配环形缓冲：<br>
+ * 生产者通过CAS抢占序号后直接写入槽位，不需要为每条日志创建任务对象；
+ * 消费者在recorder线程上批量消费，所以日志的格式化、切分、落盘都不会占用业务线程。<br>
+ * 缓冲写满时直接丢弃并计数，日志不能反过来拖慢代理转发
+ */
+@Slf4j
+public class TraceRingBuffer {
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    /**
+     * 单次消费的最大数量，之后让出recorder线程，保证监听器注册等其他任务可以及时执行
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    public static final TraceRingBuffer INSTANCE = new TraceRingBuffer(Recorder.workThread());
+
+    private final Looper consumerThread;
+
+    private final EventHandler[] handlers = new EventHandler[CAPACITY];
+    private final Recorder.MessageGetter[] messages = new Recorder.MessageGetter[CAPACITY];
+    private final Throwable[] throwables = new Throwable[CAPACITY];
+    /**
+     * 每个槽位已经发布的序号，消费者据此判断槽位数据是否写入完成
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * 下一个可以被生产者抢占的序号
+     */
+    private final AtomicLong claimSequence = new AtomicLong(0);
+    /**
+     * 下一个需要被消费的序号，只有消费者写入
+     */
+    private volatile long consumeSequence = 0;
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Runnable drainTask = this::drain;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private TraceRingBuffer(Looper consumerThread) {
+        this.consumerThread = consumerThread;
+        long[] init = new long[CAPACITY];
+        Arrays.fill(init, -1);
+        this.published = new AtomicLongArray(init);
+    }
+
+    /**
+     * @return 缓冲已满时返回false，事件被丢弃
+     */
+    public boolean publish(EventHandler handler, Recorder.MessageGetter messageGetter, Throwable throwable) {
+        long seq;
+        do {
+            seq = claimSequence.get();
+            if (seq - consumeSequence >= CAPACITY) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimSequence.compareAndSet(seq, seq + 1));
+
+        int index = (int) (seq & MASK);
+        handlers[index] = handler;
+        messages[index] = messageGetter;
+        throwables[index] = throwable;
+        // 这里需要volatile写，保证后续对drainScheduled的读取不会被重排到发布之前
+        published.set(index, seq);
+
+        if (!drainScheduled.get() && drainScheduled.compareAndSet(false, true)) {
+            // 生产者可能就是recorder线程本身，所以总是入队，不能在当前调用栈直接消费
+            consumerThread.offerLast(drainTask);
+        }
+        return true;
+    }
+
+    private void drain() {
+        long seq = consumeSequence;
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            int index = (int) (seq & MASK);
+            if (published.get(index) != seq) {
+                break;
+            }
+            EventHandler handler = handlers[index];
+            Recorder.MessageGetter messageGetter = messages[index];
+            Throwable throwable = throwables[index];
+            handlers[index] = null;
+            messages[index] = null;
+            throwables[index] = null;
+            seq++;
+            consumeSequence = seq;
+            count++;
+            try {
+                handler.handleEvent(messageGetter, throwable);
+            } catch (Throwable e) {
+                // 日志处理本身的异常不能影响后续日志
+                log.error("trace event handle error", e);
+            }
+        }
+        if (count == BATCH_SIZE) {
+            consumerThread.offerLast(drainTask);
+            return;
+        }
+        drainScheduled.set(false);
+        // 清除标记之后可能有生产者已经发布，但是看到的标记还是true
+        if (published.get((int) (seq & MASK)) == seq && drainScheduled.compareAndSet(false, true)) {
+            consumerThread.offerLast(drainTask);
+        }
+    }
+
+    /**
+     * 由于缓冲已满被丢弃的日志事件数量
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 在recorder线程上处理日志事件
+     */
+    public interface EventHandler {
+        void handleEvent(Recorder.MessageGetter messageGetter, Throwable throwable);
+    }
+}
@@ -0,0 +1,27 @@
+package cn.iinti.proxycompose.trace.store;
+
+import lombok.Getter;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+@Getter
+public class TraceRecord {
+    private final String sessionId;
+    private final long timestamp;
+    private final String scene;
+    private final String message;
+
+    public TraceRecord(String sessionId, long timestamp, String scene, String message) {
+        this.sessionId = sessionId;
+        this.timestamp = timestamp;
+        this.scene = scene;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS").format(new Date(timestamp))
+                + " [" + scene + "] " + message;
+    }
+}
@@ -0,0 +1,162 @@
+package cn.iinti.proxycompose.trace.store;
+
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * trace存储的一个分段文件，文件创建时按照固定大小映射到内存，只追加写入。<br>
+ * 记录格式：
+ * <pre>
+ * int    记录总长度（包含本字段），0代表分段结束
+ * long   时间戳
+ * short  sessionId长度 + sessionId
+ * byte   scene长度 + scene
+ * int    消息长度 + 消息，均为utf8
+ * </pre>
+ * sessionId到记录偏移的索引只保存在内存中，加载已有分段时扫描一次重建
+ */
+class TraceSegment {
+    private static final int FIXED_LENGTH = 4 + 8 + 2 + 1 + 4;
+    private static final int MAX_SESSION_ID_LENGTH = Short.MAX_VALUE;
+    private static final int MAX_SCENE_LENGTH = 127;
+
+    final File file;
+    final long sequence;
+    private final MappedByteBuffer buffer;
+    private final Map<String, OffsetList> index = new HashMap<>();
+
+    private TraceSegment(File file, long sequence, MappedByteBuffer buffer) {
+        this.file = file;
+        this.sequence = sequence;
+        this.buffer = buffer;
+    }
+
+    static TraceSegment create(File file, long sequence, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new TraceSegment(file, sequence, buffer);
+        }
+    }
+
+    /**
+     * 加载已经存在的分段，扫描记录重建索引，之后的写入会追加在最后一条记录之后
+     */
+    static TraceSegment load(File file, long sequence) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            TraceSegment segment = new TraceSegment(file, sequence, buffer);
+            segment.rebuildIndex();
+            return segment;
+        }
+    }
+
+    private void rebuildIndex() {
+        int position = 0;
+        while (position + FIXED_LENGTH <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < FIXED_LENGTH || position + length > buffer.capacity()) {
+                break;
+            }
+            int sessionIdLength = buffer.getShort(position + 12);
+            String sessionId = readString(position + 14, sessionIdLength);
+            index.computeIfAbsent(sessionId, k -> new OffsetList()).add(position);
+            position += length;
+        }
+        buffer.position(position);
+    }
+
+    /**
+     * @return 剩余空间不足时返回false，需要切换到新的分段
+     */
+    boolean append(String sessionId, long timestamp, String scene, String message) {
+        byte[] sessionIdBytes = truncate(sessionId.getBytes(StandardCharsets.UTF_8), MAX_SESSION_ID_LENGTH);
+        byte[] sceneBytes = truncate(scene.getBytes(StandardCharsets.UTF_8), MAX_SCENE_LENGTH);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_LENGTH + sessionIdBytes.length + sceneBytes.length + messageBytes.length;
+        // 保留4个字节作为分段结束标记
+        if (buffer.remaining() < length + 4) {
+            return false;
+        }
+        int position = buffer.position();
+        buffer.putInt(length)
+                .putLong(timestamp)
+                .putShort((short) sessionIdBytes.length).put(sessionIdBytes)
+                .put((byte) sceneBytes.length).put(sceneBytes)
+                .putInt(messageBytes.length).put(messageBytes);
+        index.computeIfAbsent(sessionId, k -> new OffsetList()).add(position);
+        return true;
+    }
+
+    void query(String sessionId, List<TraceRecord> output) {
+        OffsetList offsets = index.get(sessionId);
+        if (offsets == null) {
+            return;
+        }
+        for (int i = 0; i < offsets.size; i++) {
+            output.add(readRecord(sessionId, offsets.values[i]));
+        }
+    }
+
+    private TraceRecord readRecord(String sessionId, int position) {
+        long timestamp = buffer.getLong(position + 4);
+        int cursor = position + 14 + buffer.getShort(position + 12);
+        int sceneLength = buffer.get(cursor);
+        String scene = readString(cursor + 1, sceneLength);
+        cursor += 1 + sceneLength;
+        int messageLength = buffer.getInt(cursor);
+        String message = readString(cursor + 4, messageLength);
+        return new TraceRecord(sessionId, timestamp, scene, message);
+    }
+
+    private String readString(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void flush() {
+        buffer.force();
+    }
+
+    /**
+     * 释放映射并删除文件，调用之后本分段不能再被访问
+     */
+    void destroy() {
+        index.clear();
+        PlatformDependent.freeDirectBuffer(buffer);
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static byte[] truncate(byte[] bytes, int maxLength) {
+        return bytes.length <= maxLength ? bytes : Arrays.copyOf(bytes, maxLength);
+    }
+
+    private static class OffsetList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package cn.iinti.proxycompose.trace.store;
+
+import cn.iinti.proxycompose.Settings;
+import cn.iinti.proxycompose.loop.Looper;
+import cn.iinti.proxycompose.loop.ValueCallback;
+import cn.iinti.proxycompose.trace.Recorder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * 会话trace的二进制存储，由多个内存映射的分段文件组成，按照总大小淘汰最老的分段。<br>
+ * 写入和查询都在recorder线程上执行，所以分段和索引都不需要加锁，
+ * 查询时只需要根据sessionId索引直接定位记录，不需要扫描日志文件
+ */
+@Slf4j
+public class TraceStore {
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Looper workThread = Recorder.workThread();
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final ArrayDeque<TraceSegment> segments = new ArrayDeque<>();
+    private TraceSegment active;
+    private long nextSequence = 0;
+
+    /**
+     * @return 没有开启trace存储，或者存储初始化失败时返回null
+     */
+    public static TraceStore get() {
+        return Holder.INSTANCE;
+    }
+
+    private static class Holder {
+        private static final TraceStore INSTANCE = create();
+    }
+
+    private static TraceStore create() {
+        if (!Settings.global.traceStore.value) {
+            return null;
+        }
+        String logDir = System.getProperty("LOG_DIR", "logs");
+        File dir = new File(logDir, "proxy-compose/traces/store");
+        // 单个映射区域不能超过2G
+        int segmentMB = Math.min(1024, Math.max(1, Settings.global.traceStoreSegmentMB.value));
+        int maxMB = Math.max(segmentMB, Settings.global.traceStoreMaxMB.value);
+        try {
+            return new TraceStore(dir, segmentMB * 1024 * 1024, maxMB / segmentMB);
+        } catch (IOException e) {
+            log.error("create trace store failed, dir: {}", dir.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    private TraceStore(File dir, int segmentSize, int maxSegments) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create dir: " + dir.getAbsolutePath());
+        }
+        loadSegments();
+        roll();
+    }
+
+    private void loadSegments() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        TreeMap<Long, File> sorted = new TreeMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                sorted.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                log.warn("unknown trace segment file: {}", file.getAbsolutePath());
+            }
+        }
+        for (Long sequence : sorted.keySet()) {
+            segments.addLast(TraceSegment.load(sorted.get(sequence), sequence));
+            nextSequence = sequence + 1;
+        }
+        log.info("load trace segments: {}", segments.size());
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.flush();
+        }
+        long sequence = nextSequence++;
+        File file = new File(dir, String.format("%020d", sequence) + SEGMENT_SUFFIX);
+        active = TraceSegment.create(file, sequence, segmentSize);
+        segments.addLast(active);
+        while (segments.size() > maxSegments) {
+            segments.removeFirst().destroy();
+        }
+    }
+
+    /**
+     * 追加一条记录，只能在recorder线程调用
+     */
+    public void append(String sessionId, String scene, String message) {
+        long now = System.currentTimeMillis();
+        if (active.append(sessionId, now, scene, message)) {
+            return;
+        }
+        try {
+            roll();
+        } catch (IOException e) {
+            log.error("roll trace segment failed", e);
+            return;
+        }
+        if (!active.append(sessionId, now, scene, message)) {
+            log.warn("trace record too large, sessionId: {} length: {}", sessionId, message.length());
+        }
+    }
+
+    /**
+     * 查询一个会话的全部trace，按照写入顺序返回
+     */
+    public void query(String sessionId, ValueCallback<List<TraceRecord>> valueCallback) {
+        workThread.execute(() -> {
+            List<TraceRecord> ret = new ArrayList<>();
+            for (TraceSegment segment : segments) {
+                segment.query(sessionId, ret);
+            }
+            ValueCallback.success(valueCallback, ret);
+        });
+    }
+}
@@ -0,0 +1,115 @@
+package cn.iinti.proxycompose.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * 基于有序long数组的一致性哈希环，构建之后不可变。<br>
+ * 成员变化时整体重建，再通过volatile引用替换，查询时无锁、无装箱，只有一次二分搜索<br>
+ * 每个节点可以展开为多个虚拟节点，虚拟节点的hash为：murHash(nodeKey + "_##_" + i)，i从1开始
+ */
+public class ConsistentHashRing<T> {
+    private static final ConsistentHashRing<Object> EMPTY = new ConsistentHashRing<>(new long[0], new Object[0], 0);
+
+    private final long[] hashes;
+    private final Object[] nodes;
+    private final int nodeCount;
+
+    private ConsistentHashRing(long[] hashes, Object[] nodes, int nodeCount) {
+        this.hashes = hashes;
+        this.nodes = nodes;
+        this.nodeCount = nodeCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> ConsistentHashRing<T> empty() {
+        return (ConsistentHashRing<T>) EMPTY;
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * @return 真实节点数量（不包括虚拟节点）
+     */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public boolean isEmpty() {
+        return nodeCount == 0;
+    }
+
+    public T fetch(long hash) {
+        if (hashes.length == 0) {
+            return null;
+        }
+        return nodeAt(startIndex(hash));
+    }
+
+    /**
+     * 从hash位置开始顺时针查找第一个满足条件的节点，一圈都不满足返回null
+     */
+    public T fetch(long hash, Predicate<T> accept) {
+        int length = hashes.length;
+        if (length == 0) {
+            return null;
+        }
+        int index = startIndex(hash);
+        for (int i = 0; i < length; i++) {
+            T node = nodeAt((index + i) % length);
+            if (accept.test(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private int startIndex(long hash) {
+        int index = Arrays.binarySearch(hashes, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index == hashes.length ? 0 : index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T nodeAt(int index) {
+        return (T) nodes[index];
+    }
+
+    public static class Builder<T> {
+        // 只在构建时使用，hash冲突时后加入的节点覆盖之前的节点，和之前TreeMap的行为一致
+        private final TreeMap<Long, T> ring = new TreeMap<>();
+        private int nodeCount = 0;
+
+        public Builder<T> add(T node, String nodeKey, int virtualNodes) {
+            if (virtualNodes <= 0) {
+                return this;
+            }
+            for (int i = 1; i <= virtualNodes; i++) {
+                ring.put(ConsistentHashUtil.murHash(nodeKey + "_##_" + i), node);
+            }
+            nodeCount++;
+            return this;
+        }
+
+        public ConsistentHashRing<T> build() {
+            if (ring.isEmpty()) {
+                return empty();
+            }
+            long[] hashes = new long[ring.size()];
+            Object[] nodes = new Object[ring.size()];
+            int i = 0;
+            for (Map.Entry<Long, T> entry : ring.entrySet()) {
+                hashes[i] = entry.getKey();
+                nodes[i] = entry.getValue();
+                i++;
+            }
+            return new ConsistentHashRing<>(hashes, nodes, nodeCount);
+        }
+    }
+}
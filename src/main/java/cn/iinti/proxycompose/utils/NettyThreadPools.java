@@ -1,26 +1,69 @@
 package cn.iinti.proxycompose.utils;
 
+import cn.iinti.proxycompose.Settings;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.DefaultThreadFactory;
 
 public class NettyThreadPools {
 
-    public static final NioEventLoopGroup outboundGroup = newDefaultEventLoop("outbound");
+    /**
+     * 是否使用epoll，需要配置开启并且当前平台支持（linux）
+     */
+    public static final boolean useEpoll = Settings.global.nativeTransport.value && Epoll.isAvailable();
 
-    public static final NioEventLoopGroup proxyServerBossGroup = newDefaultEventLoop("Proxy-boss-group");
-    public static final NioEventLoopGroup proxyServerWorkerGroup = newDefaultEventLoop("Proxy-worker-group");
+    /**
+     * splice要求上下游channel都是epoll，并且都运行在LT模式
+     */
+    public static final boolean useSplice = useEpoll && Settings.global.spliceRelay.value;
+
+    /**
+     * 上游连接和用户连接使用同一个eventLoop
+     */
+    public static final boolean colocateUpstream = Settings.global.upstreamColocate.value;
+
+    public static final EventLoopGroup outboundGroup = newDefaultEventLoop("outbound");
+
+    public static final EventLoopGroup proxyServerBossGroup = newDefaultEventLoop("Proxy-boss-group");
+    public static final EventLoopGroup proxyServerWorkerGroup = newDefaultEventLoop("Proxy-worker-group");
 
     // 下载代理，通知外部等业务http调用
     public static final NioEventLoopGroup asyncHttpWorkGroup =
-            new NioEventLoopGroup(1, createThreadFactory("async-http-invoker"));
+            new NioEventLoopGroup(1, createThreadFactory("async-http-invoker", NioEventLoopGroup.class));
     //newDefaultEventLoop("async-http-invoker");
 
 
-    private static NioEventLoopGroup newDefaultEventLoop(String name) {
-        return new NioEventLoopGroup(0, createThreadFactory(name));
+    private static EventLoopGroup newDefaultEventLoop(String name) {
+        if (useEpoll) {
+            return new EpollEventLoopGroup(0, createThreadFactory(name, EpollEventLoopGroup.class));
+        }
+        return new NioEventLoopGroup(0, createThreadFactory(name, NioEventLoopGroup.class));
+    }
+
+    private static DefaultThreadFactory createThreadFactory(String name, Class<?> poolType) {
+        return new DefaultThreadFactory(name + "-" + DefaultThreadFactory.toPoolName(poolType));
+    }
+
+    public static Class<? extends ServerSocketChannel> serverChannelClass() {
+        return useEpoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends SocketChannel> socketChannelClass() {
+        return useEpoll ? EpollSocketChannel.class : NioSocketChannel.class;
     }
 
-    private static DefaultThreadFactory createThreadFactory(String name) {
-        return new DefaultThreadFactory(name + "-" + DefaultThreadFactory.toPoolName(NioEventLoopGroup.class));
+    public static Class<? extends DatagramChannel> datagramChannelClass() {
+        return useEpoll ? EpollDatagramChannel.class : NioDatagramChannel.class;
     }
 }
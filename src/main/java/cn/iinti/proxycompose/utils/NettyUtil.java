@@ -8,10 +8,12 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
 import org.apache.commons.lang3.math.NumberUtils;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -96,6 +98,47 @@ public class NettyUtil {
         httpMessage.headers().set(HttpHeaderNames.VIA, vias);
     }
 
+    /**
+     * 用于描述body边界的头部，不能因为出现在Connection中就被删除，否则转发出去的body会失去边界
+     */
+    private static final List<AsciiString> FRAMING_HEADERS = Arrays.asList(
+            HttpHeaderNames.CONTENT_LENGTH, HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderNames.HOST
+    );
+
+    /**
+     * 删除逐跳头部（RFC 7230 6.1），包括Connection中列出的头部，这些头部只对当前一跳连接有效，代理转发时不能透传。<br>
+     * Transfer-Encoding保留：转发的HttpContent由netty的编码器按照这个头部重新分块，每一跳的编码方式始终和头部一致
+     */
+    public static void removeHopByHopHeaders(HttpMessage httpMessage) {
+        HttpHeaders headers = httpMessage.headers();
+        for (String connection : headers.getAll(HttpHeaderNames.CONNECTION)) {
+            for (String name : connection.split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                boolean framing = false;
+                for (AsciiString framingHeader : FRAMING_HEADERS) {
+                    if (framingHeader.contentEqualsIgnoreCase(name)) {
+                        framing = true;
+                        break;
+                    }
+                }
+                if (!framing) {
+                    headers.remove(name);
+                }
+            }
+        }
+        headers.remove(HttpHeaderNames.CONNECTION);
+        headers.remove("Proxy-Connection");
+        headers.remove(HttpHeaderNames.KEEP_ALIVE);
+        headers.remove(HttpHeaderNames.TE);
+        headers.remove(HttpHeaderNames.TRAILER);
+        headers.remove(HttpHeaderNames.UPGRADE);
+        headers.remove(HttpHeaderNames.PROXY_AUTHENTICATE);
+        headers.remove(HttpHeaderNames.PROXY_AUTHORIZATION);
+    }
+
     public static void sendHttpResponse(ChannelHandlerContext ctx, HttpRequest req, DefaultFullHttpResponse res) {
         res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
         ChannelFuture f = ctx.channel().writeAndFlush(res);